@@ -0,0 +1,81 @@
+package com.jutge.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Allocation of the calls in the client itself: the transport answers from
+ * memory, so that the buffers of the HTTP stack are left out. Run it with the
+ * GC profiler and read gc.alloc.rate.norm, the bytes allocated per call, which
+ * stays near zero for small payloads once the buffer pools are warm:
+ *
+ * make bench ARGS="AllocationBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AllocationBenchmark {
+
+    /** Whether the responses are compressed with gzip */
+    @Param({ "false", "true" })
+    public boolean gzip;
+
+    private final JutgeApiClient.MultipartClient multipart = new JutgeApiClient.MultipartClient();
+    private final JutgeApiClient.Upload[] none = new JutgeApiClient.Upload[0];
+    private byte[] data;
+    private JutgeApiClient.Transport fortuneTransport;
+    private JutgeApiClient fortune;
+    private JutgeApiClient problem;
+
+    @Setup
+    public void setup() throws Exception {
+        data = multipart.encodeData("misc.getFortune", null, null);
+        fortuneTransport = answer(Recordings.synthetic("misc.getFortune"));
+        fortune = new JutgeApiClient("http://localhost/api");
+        fortune.transport = fortuneTransport;
+        fortune.useCache = false;
+        problem = new JutgeApiClient("http://localhost/api");
+        problem.transport = answer(Recordings.synthetic("problems.getProblem"));
+        problem.useCache = false;
+    }
+
+    /** A transport that answers every request with the given response */
+    private JutgeApiClient.Transport answer(byte[] response) throws Exception {
+        String contentType = "multipart/form-data; boundary=" + Recordings.boundaryOf(response);
+        if (!gzip) {
+            return request -> new JutgeApiClient.TransportResponse(200, contentType,
+                    new ByteArrayInputStream(response));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(response);
+        }
+        byte[] compressed = bytes.toByteArray();
+        return request -> new JutgeApiClient.TransportResponse(200, contentType,
+                new ByteArrayInputStream(compressed), "gzip");
+    }
+
+    /** Encoding of the request and parsing of the response */
+    @Benchmark
+    public Object execute() throws Exception {
+        return multipart.execute(fortuneTransport, "http://localhost/api", data, none, 1024 * 1024, null);
+    }
+
+    /** A small call through the generated module, with its metrics and decoding */
+    @Benchmark
+    public Object fortune() throws Exception {
+        return fortune.misc.getFortune();
+    }
+
+    @Benchmark
+    public Object problem() throws Exception {
+        return problem.problems.getProblem("P68688_en");
+    }
+}
@@ -0,0 +1,52 @@
+package com.jutge.api;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encodes requests with MultipartClient: the JSON data part and the multipart
+ * body with ifiles of several sizes, read through as the transport would.
+ *
+ * make bench ARGS="EncodeBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EncodeBenchmark {
+
+    @Param({ "0", "1024", "1048576" })
+    public int ifileSize;
+
+    private final JutgeApiClient.MultipartClient multipart = new JutgeApiClient.MultipartClient();
+    private final JutgeApiClient.Meta meta = new JutgeApiClient.Meta("0123456789abcdef0123456789abcdef");
+    private JutgeApiClient.Upload[] ifiles;
+
+    @Setup
+    public void setup() {
+        ifiles = ifileSize == 0 ? new JutgeApiClient.Upload[0]
+                : new JutgeApiClient.Upload[] { JutgeApiClient.Upload.of(Recordings.file(ifileSize)) };
+    }
+
+    @Benchmark
+    public byte[] data() throws Exception {
+        return multipart.encodeData("student.submissions.submit", out -> {
+            out.beginObject();
+            out.name("problem_id").value("P68688_en");
+            out.name("compiler_id").value("G++17");
+            out.name("code").value("#include <iostream>\nint main() { std::cout << \"Hello world!\" << std::endl; }\n");
+            out.name("annotation").value("benchmark");
+            out.endObject();
+        }, meta);
+    }
+
+    @Benchmark
+    public long request() throws Exception {
+        JutgeApiClient.TransportRequest request = multipart.encode("http://localhost/api", data(), ifiles);
+        return request.openBody().transferTo(OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,76 @@
+package com.jutge.api;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * End-to-end calls through the generated modules against the local stub
+ * server: encoding, HTTP exchange, decompression, multipart parsing and
+ * decoding.
+ *
+ * make bench ARGS="ExecuteBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ExecuteBenchmark {
+
+    @Param({ "100", "10000" })
+    public int size;
+
+    /** Whether the stub compresses its responses with gzip */
+    @Param({ "false", "true" })
+    public boolean gzip;
+
+    private StubServer stub;
+    private JutgeApiClient jutge;
+
+    @Setup
+    public void setup() throws Exception {
+        stub = new StubServer();
+        stub.gzip = gzip;
+        stub.put("student.statuses.getAll", Recordings.multipart(Recordings.statuses(size)));
+        jutge = new JutgeApiClient(stub.url());
+        jutge.useCache = false;
+    }
+
+    @TearDown
+    public void tearDown() {
+        stub.close();
+    }
+
+    @Benchmark
+    public Object fortune() throws Exception {
+        return jutge.misc.getFortune();
+    }
+
+    @Benchmark
+    public Object tables() throws Exception {
+        return jutge.tables.get();
+    }
+
+    @Benchmark
+    public Object statuses() throws Exception {
+        return jutge.student.statuses.getAll();
+    }
+
+    @Benchmark
+    public Object statusesAsync() throws Exception {
+        return jutge.student.statuses.getAllAsync().get();
+    }
+
+    @Benchmark
+    public Object logo() throws Exception {
+        return jutge.misc.getLogo();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object problemConcurrent() throws Exception {
+        return jutge.problems.getProblem("P68688_en");
+    }
+}
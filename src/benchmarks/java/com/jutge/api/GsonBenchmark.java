@@ -0,0 +1,79 @@
+package com.jutge.api;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Maps large models with the generated adapters of JutgeApiClient.GSON and,
+ * for reference, with a plain reflective Gson.
+ *
+ * make bench ARGS="GsonBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GsonBenchmark {
+
+    @Param({ "100", "10000" })
+    public int size;
+
+    private static final TypeToken<HashMap<String, JutgeApiClient.AbstractStatus>> STATUSES = new TypeToken<>() {
+    };
+
+    private final Gson reflective = new Gson();
+    private final TypeAdapter<JutgeApiClient.AllTables> tablesAdapter = JutgeApiClient.GSON
+            .getAdapter(JutgeApiClient.AllTables.class);
+    private final TypeAdapter<HashMap<String, JutgeApiClient.AbstractStatus>> statusesAdapter = JutgeApiClient.GSON
+            .getAdapter(STATUSES);
+
+    private String tables;
+    private String statuses;
+    private JutgeApiClient.AllTables tablesObject;
+    private HashMap<String, JutgeApiClient.AbstractStatus> statusesObject;
+
+    @Setup
+    public void setup() throws Exception {
+        tables = Recordings.tables(size / 10);
+        statuses = Recordings.statuses(size);
+        tablesObject = tablesAdapter.fromJson(tables);
+        statusesObject = statusesAdapter.fromJson(statuses);
+    }
+
+    @Benchmark
+    public Object readTables() throws Exception {
+        return tablesAdapter.fromJson(tables);
+    }
+
+    @Benchmark
+    public Object readTablesReflective() {
+        return reflective.fromJson(tables, JutgeApiClient.AllTables.class);
+    }
+
+    @Benchmark
+    public Object readStatuses() throws Exception {
+        return statusesAdapter.fromJson(statuses);
+    }
+
+    @Benchmark
+    public Object readStatusesReflective() {
+        return reflective.fromJson(statuses, STATUSES);
+    }
+
+    @Benchmark
+    public String writeTables() {
+        return tablesAdapter.toJson(tablesObject);
+    }
+
+    @Benchmark
+    public String writeStatuses() {
+        return statusesAdapter.toJson(statusesObject);
+    }
+}
@@ -0,0 +1,99 @@
+package com.jutge.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * The multipart parser used by JutgeApiClient before MultipartReader: it reads
+ * the whole body, scans it twice for boundaries and copies every part three
+ * times. Kept only as a baseline for the benchmarks.
+ */
+class LegacyMultipartParser {
+
+    public static ArrayList<byte[]> parse(InputStream inputStream, String boundary) throws Exception {
+        byte[] responseBytes = readAllBytes(inputStream);
+        ArrayList<byte[]> contents = new ArrayList<>();
+
+        byte[] boundaryBytes = ("--" + boundary).getBytes();
+        byte[] finalBoundaryBytes = ("--" + boundary + "--").getBytes();
+        ArrayList<Integer> boundaryPositions = findAllBoundaries(responseBytes, boundaryBytes, finalBoundaryBytes);
+
+        for (int i = 0; i < boundaryPositions.size() - 1; i++) {
+            int start = boundaryPositions.get(i);
+            int end = boundaryPositions.get(i + 1);
+
+            byte[] partBytes = new byte[end - start];
+            System.arraycopy(responseBytes, start, partBytes, 0, partBytes.length);
+
+            int headerEnd = findHeaderEnd(partBytes);
+            if (headerEnd == -1) {
+                continue;
+            }
+
+            byte[] contentBytes = new byte[partBytes.length - headerEnd];
+            System.arraycopy(partBytes, headerEnd, contentBytes, 0, contentBytes.length);
+            contents.add(stripTrailingCRLF(contentBytes));
+        }
+        return contents;
+    }
+
+    private static byte[] stripTrailingCRLF(byte[] data) {
+        if (data.length >= 2 && data[data.length - 2] == '\r' && data[data.length - 1] == '\n') {
+            byte[] result = new byte[data.length - 2];
+            System.arraycopy(data, 0, result, 0, data.length - 2);
+            return result;
+        }
+        return data;
+    }
+
+    private static int findHeaderEnd(byte[] partBytes) {
+        for (int i = 0; i < partBytes.length - 3; i++) {
+            if (partBytes[i] == '\r' && partBytes[i + 1] == '\n' &&
+                    partBytes[i + 2] == '\r' && partBytes[i + 3] == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    private static ArrayList<Integer> findAllBoundaries(byte[] data, byte[] boundaryBytes, byte[] finalBoundaryBytes) {
+        ArrayList<Integer> positions = new ArrayList<>();
+        int pos = indexOf(data, boundaryBytes, 0);
+        while (pos != -1) {
+            positions.add(pos);
+            pos = indexOf(data, boundaryBytes, pos + boundaryBytes.length);
+        }
+        pos = indexOf(data, finalBoundaryBytes, 0);
+        if (pos != -1) {
+            positions.add(pos);
+        }
+        return positions;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int start) {
+        for (int i = start; i <= data.length - pattern.length; i++) {
+            boolean found = true;
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    found = false;
+                    break;
+                }
+            }
+            if (found) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] readAllBytes(InputStream inputStream) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int bytesRead;
+        byte[] data = new byte[4096];
+        while ((bytesRead = inputStream.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, bytesRead);
+        }
+        return buffer.toByteArray();
+    }
+}
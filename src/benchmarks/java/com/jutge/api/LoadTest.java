@@ -0,0 +1,336 @@
+package com.jutge.api;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sustained load on the client: many concurrent callers run each scenario for
+ * a while against the stub server (or another URL), and the throughput, the
+ * latency percentiles, the allocation rate and the connections opened are
+ * reported for each scenario.
+ *
+ * Scenarios are the public static methods whose name starts with Load, which
+ * make one call with the given client. The stub answers them with synthetic
+ * responses. Record can run the same scenarios against the live API to record
+ * their requests and responses, which the stub then replays instead, counting
+ * the requests that differ from the recorded ones.
+ *
+ * With a rate, callers follow a fixed schedule and latencies are measured from
+ * the time each call was due, so that a stalled client shows in the tail
+ * instead of lowering the load (coordinated omission). Without a rate, each
+ * caller makes its calls back to back.
+ *
+ * Allocations are those of the callers and of the client threads alive at the
+ * end of the run; the stub threads are excluded.
+ *
+ * With several stubs (or comma-separated URLs), the client routes its requests
+ * among them, and the requests that each one got are reported. The first stub
+ * can be made slower than the others, to see traffic move away from it.
+ *
+ * java -cp ... com.jutge.api.LoadTest [concurrency=1000] [rate=0] [seconds=10]
+ *      [warmup=2] [url=...] [stubs=1] [slow=0] [recordings=recordings] [scenario...]
+ */
+public class LoadTest {
+
+    public static Object LoadFortune(JutgeApiClient jutge) throws Exception {
+        return jutge.misc.getFortune();
+    }
+
+    public static Object LoadLogo(JutgeApiClient jutge) throws Exception {
+        return jutge.misc.getLogo();
+    }
+
+    public static Object LoadTables(JutgeApiClient jutge) throws Exception {
+        return jutge.tables.get();
+    }
+
+    public static Object LoadCompilers(JutgeApiClient jutge) throws Exception {
+        return jutge.tables.getCompilers();
+    }
+
+    public static Object LoadProblem(JutgeApiClient jutge) throws Exception {
+        return jutge.problems.getProblem("P68688_en");
+    }
+
+    public static Object LoadProblemAsync(JutgeApiClient jutge) throws Exception {
+        return jutge.problems.getProblemAsync("P68688_en").get();
+    }
+
+    public static Object LoadStatuses(JutgeApiClient jutge) throws Exception {
+        return jutge.student.statuses.getAll();
+    }
+
+    public static Object LoadStatusesStream(JutgeApiClient jutge) throws Exception {
+        try (var statuses = jutge.student.statuses.getAllStream()) {
+            return statuses.count();
+        }
+    }
+
+    /** The scenarios of this class, by name */
+    public static Map<String, Method> scenarios() {
+        Map<String, Method> scenarios = new TreeMap<>();
+        for (Method method : LoadTest.class.getDeclaredMethods()) {
+            if (method.getName().startsWith("Load") && Modifier.isStatic(method.getModifiers())
+                    && Modifier.isPublic(method.getModifiers())) {
+                scenarios.put(method.getName(), method);
+            }
+        }
+        return scenarios;
+    }
+
+    /** Runs a scenario once, unwrapping the exceptions of the call */
+    public static Object run(Method scenario, JutgeApiClient jutge) throws Exception {
+        try {
+            return scenario.invoke(null, jutge);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private final int concurrency;
+    private final double rate;
+    private final double seconds;
+    private final double warmup;
+    private final String[] urls;
+    private final StubServer[] stubs;
+
+    public LoadTest(int concurrency, double rate, double seconds, double warmup, String[] urls, StubServer[] stubs) {
+        this.concurrency = concurrency;
+        this.rate = rate;
+        this.seconds = seconds;
+        this.warmup = warmup;
+        this.urls = urls;
+        this.stubs = stubs;
+    }
+
+    /** Measurements of a run of a scenario */
+    public static class Result {
+        public final String scenario;
+        public final JutgeApiClient.Histogram latency = new JutgeApiClient.Histogram();
+        public final LongAdder errors = new LongAdder();
+        public final Map<String, AtomicLong> errorNames = new ConcurrentHashMap<>();
+        public final LongAdder allocated = new LongAdder();
+        public long nanos;
+        public long gcCount;
+        public long gcMillis;
+        public int connections;
+        public long mismatches;
+        public final Map<String, Long> routed = new LinkedHashMap<>();
+
+        Result(String scenario) {
+            this.scenario = scenario;
+        }
+
+        public double throughput() {
+            return latency.count() * 1e9 / nanos;
+        }
+
+        public void print() {
+            System.out.printf("%s%n", scenario);
+            System.out.printf("  calls %d (%.1f/s), errors %d%s, connections opened %d, mismatched requests %d%n",
+                    latency.count(), throughput(), errors.sum(), errorNames.isEmpty() ? "" : " " + errorNames,
+                    connections, mismatches);
+            if (routed.size() > 1) {
+                System.out.printf("  requests per endpoint %s%n", routed);
+            }
+            System.out.printf("  latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  p99.99 %.3f  max %.3f%n",
+                    millis(latency.percentile(50)), millis(latency.percentile(90)),
+                    millis(latency.percentile(99)), millis(latency.percentile(99.9)),
+                    millis(latency.percentile(99.99)), millis(latency.max()));
+            long calls = Math.max(latency.count() + errors.sum(), 1);
+            System.out.printf("  allocation %.1f MB/s, %.1f KB/call, gc %d (%d ms)%n",
+                    allocated.sum() / 1e6 / (nanos / 1e9), allocated.sum() / 1024.0 / calls, gcCount, gcMillis);
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+    /** Runs a scenario for the warmup time and then measures it */
+    public Result run(String name, Method scenario) throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient(urls);
+        jutge.useCache = false;
+        if (warmup > 0) {
+            load(new Result(name), scenario, jutge, warmup);
+        }
+        Result result = new Result(name);
+        JutgeApiClient.Router.Endpoint[] endpoints = jutge.router.endpoints();
+        long[] requests = new long[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            requests[i] = endpoints[i].requests();
+        }
+        int connections = 0;
+        long mismatches = 0;
+        for (StubServer stub : stubs) {
+            connections += stub.connections();
+            mismatches += stub.mismatches();
+        }
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long others = otherThreadsAllocated();
+        load(result, scenario, jutge, seconds);
+        result.allocated.add(Math.max(otherThreadsAllocated() - others, 0));
+        result.gcCount = gcCount() - gcCount;
+        result.gcMillis = gcMillis() - gcMillis;
+        for (StubServer stub : stubs) {
+            result.connections += stub.connections();
+            result.mismatches += stub.mismatches();
+        }
+        result.connections -= connections;
+        result.mismatches -= mismatches;
+        for (int i = 0; i < endpoints.length; i++) {
+            result.routed.put(endpoints[i].url, endpoints[i].requests() - requests[i]);
+        }
+        return result;
+    }
+
+    private void load(Result result, Method scenario, JutgeApiClient jutge, double duration) throws Exception {
+        long start = System.nanoTime() + 10_000_000L;
+        long end = start + (long) (duration * 1e9);
+        long interval = rate > 0 ? (long) (concurrency * 1e9 / rate) : 0;
+        ArrayList<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            long first = rate > 0 ? start + (long) (i * 1e9 / rate) : start;
+            Thread caller = new Thread(() -> call(result, scenario, jutge, first, interval, end), "load-caller");
+            caller.setDaemon(true);
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        result.nanos = Math.max(System.nanoTime(), end) - start;
+    }
+
+    private static void call(Result result, Method scenario, JutgeApiClient jutge, long due, long interval,
+            long end) {
+        com.sun.management.ThreadMXBean threads = threads();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        sleepUntil(due);
+        while (due < end) {
+            long start = interval > 0 ? due : System.nanoTime();
+            try {
+                run(scenario, jutge);
+                result.latency.record(System.nanoTime() - start);
+            } catch (Exception e) {
+                result.errors.increment();
+                result.errorNames.computeIfAbsent(e.getClass().getSimpleName(), n -> new AtomicLong())
+                        .incrementAndGet();
+            }
+            due = interval > 0 ? due + interval : System.nanoTime();
+            sleepUntil(due);
+        }
+        result.allocated.add(threads.getCurrentThreadAllocatedBytes() - allocated);
+    }
+
+    private static void sleepUntil(long time) {
+        long wait;
+        while ((wait = time - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    /** Bytes allocated by the live threads that are neither callers nor stub threads */
+    private static long otherThreadsAllocated() {
+        com.sun.management.ThreadMXBean threads = threads();
+        long[] ids = threads.getAllThreadIds();
+        ThreadInfo[] infos = threads.getThreadInfo(ids);
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] == null || allocated[i] < 0) {
+                continue;
+            }
+            String name = infos[i].getThreadName();
+            if (!name.equals("load-caller") && !name.startsWith("stub-server") && !name.startsWith("HTTP-Dispatcher")) {
+                total += allocated[i];
+            }
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(gc.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>(Map.of("concurrency", "1000", "rate", "0", "seconds", "10",
+                "warmup", "2", "stubs", "1", "slow", "0", "recordings",
+                System.getProperty("jutge.recordings", "recordings")));
+        ArrayList<String> names = new ArrayList<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                options.put(arg.substring(0, equals), arg.substring(equals + 1));
+            } else {
+                names.add(arg);
+            }
+        }
+
+        StubServer[] stubs = new StubServer[0];
+        String[] urls;
+        if (options.containsKey("url")) {
+            urls = options.get("url").split(",");
+        } else {
+            stubs = new StubServer[Integer.parseInt(options.get("stubs"))];
+            urls = new String[stubs.length];
+            for (int i = 0; i < stubs.length; i++) {
+                stubs[i] = new StubServer(0, Paths.get(options.get("recordings")));
+                urls[i] = stubs[i].url();
+            }
+            stubs[0].delay = Integer.parseInt(options.get("slow"));
+        }
+        LoadTest test = new LoadTest(Integer.parseInt(options.get("concurrency")),
+                Double.parseDouble(options.get("rate")), Double.parseDouble(options.get("seconds")),
+                Double.parseDouble(options.get("warmup")), urls, stubs);
+        System.out.println("Load test of " + String.join(", ", urls) + " with " + options);
+
+        try {
+            for (Map.Entry<String, Method> scenario : scenarios().entrySet()) {
+                if (names.isEmpty() || names.stream().anyMatch(scenario.getKey()::contains)) {
+                    test.run(scenario.getKey(), scenario.getValue()).print();
+                }
+            }
+        } finally {
+            for (StubServer stub : stubs) {
+                stub.close();
+            }
+        }
+    }
+}
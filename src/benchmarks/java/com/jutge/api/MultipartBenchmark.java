@@ -0,0 +1,87 @@
+package com.jutge.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares MultipartReader with the legacy whole-body parser on multipart
+ * responses from 1 KB to 100 MB split into a varying number of parts.
+ *
+ * make bench ARGS="MultipartBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MultipartBenchmark {
+
+    @Param({ "1024", "1048576", "104857600" })
+    public int size;
+
+    @Param({ "2", "64" })
+    public int parts;
+
+    private String boundary;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        boundary = UUID.randomUUID().toString();
+        body = build(size, parts, boundary);
+    }
+
+    /** A multipart body with a JSON data part followed by binary parts */
+    public static byte[] build(int size, int parts, String boundary) throws Exception {
+        Random random = new Random(size);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + parts * 200);
+        out.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"data\"\r\n\r\n"
+                + "{\"output\":null,\"operation_id\":\"bench\"}\r\n").getBytes(StandardCharsets.UTF_8));
+        for (int i = 1; i < parts; i++) {
+            byte[] content = new byte[size / parts];
+            random.nextBytes(content);
+            out.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file_" + i
+                    + "\"; filename=\"file_" + i + "\"\r\nContent-Type: application/octet-stream\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.write(content);
+            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public void legacy(Blackhole blackhole) throws Exception {
+        for (byte[] content : LegacyMultipartParser.parse(new ByteArrayInputStream(body), boundary)) {
+            blackhole.consume(content);
+        }
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) throws Exception {
+        OutputStream sink = new OutputStream() {
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+
+            public void write(byte[] b, int off, int len) {
+                blackhole.consume(b);
+            }
+        };
+        try (JutgeApiClient.MultipartReader reader = new JutgeApiClient.MultipartReader(
+                new ByteArrayInputStream(body), boundary)) {
+            while (reader.nextPart() != null) {
+                reader.part().transferTo(sink);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.jutge.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Records the requests and responses of the scenarios of LoadTest against the
+ * live API, for the stub server. Authenticated scenarios are recorded when
+ * JUTGE_EMAIL and JUTGE_PASSWORD are set, and skipped otherwise.
+ *
+ * java -cp ... com.jutge.api.Record [recordings]
+ */
+public class Record {
+
+    public static void main(String[] args) throws Exception {
+        Path recordings = Paths.get(args.length > 0 ? args[0] : "recordings");
+        Files.createDirectories(recordings);
+
+        JutgeApiClient jutge = new JutgeApiClient();
+        jutge.useCache = false;
+        JutgeApiClient.Transport http = jutge.transport;
+
+        String email = System.getenv("JUTGE_EMAIL");
+        String password = System.getenv("JUTGE_PASSWORD");
+        if (email != null && password != null) {
+            jutge.login(email, password);
+        }
+        for (Map.Entry<String, Method> scenario : LoadTest.scenarios().entrySet()) {
+            try {
+                record(jutge, http, recordings, () -> LoadTest.run(scenario.getValue(), jutge));
+            } catch (Exception e) {
+                System.out.println("Skipped " + scenario.getKey() + ": " + e.getMessage());
+            }
+        }
+        if (jutge.token() != null) {
+            jutge.logout();
+        }
+    }
+
+    /**
+     * Makes a call and saves the data part of its request, without the token, and
+     * its response body as it is read by the client
+     */
+    private static void record(JutgeApiClient jutge, JutgeApiClient.Transport http, Path recordings,
+            Callable<?> call) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonObject[] data = { null };
+        jutge.transport = request -> {
+            // recordings are served as they are, so ask for them uncompressed
+            request.headers.remove("Accept-Encoding");
+            data[0] = dataOf(request);
+            JutgeApiClient.TransportResponse response = http.send(request);
+            InputStream tee = new FilterInputStream(response.body) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b >= 0) {
+                        body.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int n = in.read(buffer, offset, length);
+                    if (n > 0) {
+                        body.write(buffer, offset, n);
+                    }
+                    return n;
+                }
+            };
+            return new JutgeApiClient.TransportResponse(response.statusCode, response.contentType, tee);
+        };
+        try {
+            call.call();
+        } finally {
+            jutge.transport = http;
+        }
+        String func = data[0].get("func").getAsString();
+        Files.writeString(recordings.resolve(func + ".request"), data[0].toString());
+        Files.write(recordings.resolve(func + ".multipart"), body.toByteArray());
+        System.out.println("Recorded " + func + " (" + body.size() + " bytes)");
+    }
+
+    /** The data part of a request, without its meta */
+    static JsonObject dataOf(JutgeApiClient.TransportRequest request) throws IOException {
+        String contentType = request.headers.get("Content-Type");
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
+        try (InputStream in = request.openBody()) {
+            return dataOf(in, boundary);
+        }
+    }
+
+    /** The data part of a multipart request body, without its meta */
+    static JsonObject dataOf(InputStream body, String boundary) throws IOException {
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        try (JutgeApiClient.MultipartReader reader = new JutgeApiClient.MultipartReader(body, boundary)) {
+            if (reader.nextPart() == null) {
+                return null;
+            }
+            reader.part().transferTo(part);
+        }
+        JsonObject data = JsonParser.parseString(part.toString(StandardCharsets.UTF_8)).getAsJsonObject();
+        data.remove("meta");
+        return data;
+    }
+}
@@ -0,0 +1,139 @@
+package com.jutge.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Synthetic responses with the shape of the real ones, for the funcs that have
+ * no recording. Sizes are deterministic so that runs can be compared.
+ */
+public class Recordings {
+
+    public static final String BOUNDARY = "----jutge-recording-boundary";
+
+    /** Returns the synthetic response of a func, or null if there is none */
+    public static byte[] synthetic(String func) {
+        switch (func) {
+            case "misc.getFortune":
+                return multipart("\"Benchmarks are a form of fortune telling.\"");
+            case "misc.getLogo":
+                return multipart("null", file(52950));
+            case "tables.get":
+                return multipart(tables(20));
+            case "tables.getCompilers":
+                return multipart(compilers(200));
+            case "problems.getProblem":
+                return multipart(problem("P68688_en"));
+            case "student.statuses.getAll":
+                return multipart(statuses(2000));
+            default:
+                return null;
+        }
+    }
+
+    /** A multipart response with the given output and files */
+    public static byte[] multipart(String output, byte[]... files) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(output.length() + 256);
+            out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"data\"\r\n"
+                    + "Content-Type: application/json\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.write(("{\"output\":" + output + ",\"operation_id\":\"recording\",\"time\":\"2025-01-01T00:00:00.000Z\""
+                    + ",\"duration\":1}\r\n").getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < files.length; i++) {
+                out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file_" + i
+                        + "\"; filename=\"file_" + i + "\"\r\nContent-Type: application/octet-stream\r\n\r\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                out.write(files[i]);
+                out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+            }
+            out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The boundary of a recorded response, taken from its first line */
+    public static String boundaryOf(byte[] multipart) {
+        int end = 2;
+        while (end < multipart.length && multipart[end] != '\r') {
+            end++;
+        }
+        return new String(multipart, 2, end - 2, StandardCharsets.ISO_8859_1);
+    }
+
+    public static byte[] file(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    /** An AllTables output with n entries in each table */
+    public static String tables(int n) {
+        StringBuilder json = new StringBuilder("{\"languages\":{");
+        for (int i = 0; i < n; i++) {
+            json.append(i == 0 ? "" : ",").append("\"l").append(i).append("\":{\"language_id\":\"l").append(i)
+                    .append("\",\"eng_name\":\"Language ").append(i).append("\",\"own_name\":\"Llengua ").append(i)
+                    .append("\"}");
+        }
+        json.append("},\"countries\":{");
+        for (int i = 0; i < n; i++) {
+            json.append(i == 0 ? "" : ",").append("\"c").append(i).append("\":{\"country_id\":\"c").append(i)
+                    .append("\",\"eng_name\":\"Country ").append(i).append("\"}");
+        }
+        json.append("},\"compilers\":").append(compilers(n * 5));
+        json.append(",\"drivers\":{");
+        for (int i = 0; i < n; i++) {
+            json.append(i == 0 ? "" : ",").append("\"d").append(i).append("\":{\"driver_id\":\"d").append(i)
+                    .append("\"}");
+        }
+        json.append("},\"verdicts\":{");
+        for (int i = 0; i < n; i++) {
+            json.append(i == 0 ? "" : ",").append("\"V").append(i).append("\":{\"verdict_id\":\"V").append(i)
+                    .append("\",\"name\":\"Verdict ").append(i).append("\",\"description\":\"Description of verdict ")
+                    .append(i).append("\"}");
+        }
+        json.append("},\"proglangs\":{");
+        for (int i = 0; i < n; i++) {
+            json.append(i == 0 ? "" : ",").append("\"p").append(i).append("\":{\"proglang_id\":\"p").append(i)
+                    .append("\"}");
+        }
+        return json.append("}}").toString();
+    }
+
+    /** A map of n compilers */
+    public static String compilers(int n) {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < n; i++) {
+            json.append(i == 0 ? "" : ",").append("\"C").append(i).append("\":{\"compiler_id\":\"C").append(i)
+                    .append("\",\"name\":\"Compiler ").append(i).append("\",\"language\":\"l").append(i % 20)
+                    .append("\",\"extension\":\"c").append(i).append("\",\"description\":\"A compiler\"")
+                    .append(",\"version\":\"1.0\",\"flags1\":\"-O2\",\"flags2\":\"-Wall\",\"type\":\"compiler\"")
+                    .append(",\"warning\":null,\"status\":\"ok\",\"notes\":null}");
+        }
+        return json.append("}").toString();
+    }
+
+    /** A map of n abstract statuses, as returned by student.statuses.getAll */
+    public static String statuses(int n) {
+        StringBuilder json = new StringBuilder(n * 200).append("{");
+        for (int i = 0; i < n; i++) {
+            String nm = String.format("P%05d", i);
+            json.append(i == 0 ? "" : ",").append("\"").append(nm).append("\":{\"problem_nm\":\"").append(nm)
+                    .append("\",\"nb_submissions\":").append(i % 13).append(",\"nb_pending_submissions\":0")
+                    .append(",\"nb_accepted_submissions\":").append(i % 3).append(",\"nb_rejected_submissions\":")
+                    .append(i % 5).append(",\"nb_scored_submissions\":0,\"status\":\"")
+                    .append(i % 3 == 0 ? "rejected" : "accepted").append("\"}");
+        }
+        return json.append("}").toString();
+    }
+
+    public static String problem(String problem_id) {
+        return "{\"problem_id\":\"" + problem_id + "\",\"problem_nm\":\"" + problem_id.substring(0, 6)
+                + "\",\"language_id\":\"en\",\"title\":\"Hello world!\",\"original_language_id\":\"ca\""
+                + ",\"translator\":null,\"translator_email\":null,\"checked\":1,\"abstract_problem\":{\"problem_nm\":\""
+                + problem_id.substring(0, 6) + "\",\"author\":\"Jordi Petit\",\"public\":true,\"type\":\"std\"}}";
+    }
+}
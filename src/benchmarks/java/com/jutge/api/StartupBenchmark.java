@@ -0,0 +1,115 @@
+package com.jutge.api;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Time from launching a process to the end of its first call to the stub
+ * server, which is what dominates short CLI tools. It compares a plain JVM,
+ * a JVM with the AppCDS archive built next to the jar by the training run
+ * with JAVA_APPCDS=1 (also with the JVM options that suit short-lived tools),
+ * and optionally a native image of this class:
+ *
+ * native-image -cp JutgeApiClient-fat.jar:classes com.jutge.api.StartupBenchmark startup
+ *
+ * java -cp ... com.jutge.api.StartupBenchmark [runs=20] [jar=...] [archive=...] [native=./startup]
+ */
+public class StartupBenchmark {
+
+    /** Run by each launched process: makes one call and reports it is done */
+    private static void firstCall(String url) throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient(url);
+        jutge.misc.getFortune();
+        System.out.println("done");
+        System.out.flush();
+        System.exit(0);
+    }
+
+    /** Milliseconds from the start of a process to its first completed call */
+    private static double launch(String[] command) throws Exception {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (BufferedReader out = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = out.readLine()) != null && !line.equals("done")) {
+                // warnings of the JVM
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            if (line == null || process.waitFor() != 0) {
+                throw new IllegalStateException("The first call of " + String.join(" ", command) + " failed");
+            }
+            return millis;
+        }
+    }
+
+    private static void measure(String name, String[] command, int runs) throws Exception {
+        // the first launches warm the file system cache
+        launch(command);
+        launch(command);
+        double[] millis = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            millis[i] = launch(command);
+        }
+        Arrays.sort(millis);
+        System.out.printf("%-9s min %6.1f ms   median %6.1f ms   p90 %6.1f ms%n", name, millis[0], millis[runs / 2],
+                millis[(int) Math.ceil(runs * 0.9) - 1]);
+    }
+
+    /** The client jar in the class path of this JVM */
+    private static String clientJar() {
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (entry.endsWith("JutgeApiClient-fat.jar")) {
+                return entry;
+            }
+        }
+        return "../../../out/JutgeApiClient-fat.jar";
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("call")) {
+            firstCall(args[1]);
+            return;
+        }
+
+        Map<String, String> options = new TreeMap<>(Map.of("runs", "20", "jar", clientJar()));
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        int runs = Integer.parseInt(options.get("runs"));
+        // the archive only applies to the jar at the path it was created with
+        Path jar = Paths.get(options.get("jar")).toAbsolutePath().normalize();
+        Path archive = Paths.get(options.getOrDefault("archive", jar.resolveSibling("JutgeApiClient.jsa").toString()));
+        String classes = Paths.get(StartupBenchmark.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .toString();
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classPath = jar + File.pathSeparator + classes;
+
+        try (StubServer stub = new StubServer()) {
+            String main = StartupBenchmark.class.getName();
+            measure("jvm", new String[] { java, "-cp", classPath, main, "call", stub.url() }, runs);
+            if (Files.exists(archive)) {
+                measure("appcds", new String[] { java, "-XX:SharedArchiveFile=" + archive, "-cp", classPath, main,
+                        "call", stub.url() }, runs);
+                // short-lived tools gain little from the C2 compiler and a concurrent collector
+                measure("appcds-c1", new String[] { java, "-XX:SharedArchiveFile=" + archive,
+                        "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-cp", classPath, main, "call", stub.url() },
+                        runs);
+            } else {
+                System.out.println("appcds    skipped, no archive at " + archive);
+            }
+            if (options.containsKey("native")) {
+                measure("native", new String[] { options.get("native"), "call", stub.url() }, runs);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.jutge.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Jutge API that answers each func with a multipart
+ * response, so that the benchmarks and tests run offline and repeatably.
+ *
+ * The responses are the synthetic ones of Recordings unless a recording is
+ * found. Recordings are optional and none are committed: they are raw response
+ * bodies named func.multipart, as written by Record from the live API. When
+ * the request of a func was recorded too (func.request), the requests that
+ * differ from it are counted as mismatches.
+ *
+ * java -cp ... com.jutge.api.StubServer [port] [recordings]
+ */
+public class StubServer implements AutoCloseable {
+
+    static {
+        // Otherwise Nagle and delayed ACKs add about 40 ms to every response
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final Map<String, byte[]> responses = new ConcurrentHashMap<>();
+    private final Map<String, JsonElement> requests = new ConcurrentHashMap<>();
+    private final Set<String> clients = ConcurrentHashMap.newKeySet();
+    private final AtomicLong mismatches = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+    private final Path recordings;
+
+    /** Whether to compress the responses with gzip when the client accepts it */
+    public volatile boolean gzip = false;
+
+    /** Whether to compress the responses with deflate when the client accepts it, unless gzip is on */
+    public volatile boolean deflate = false;
+
+    /** Milliseconds to wait before answering, to stand in for a slow mirror */
+    public volatile int delay = 0;
+
+    /** Whether to answer every request with HTTP 503, to stand in for a failing mirror */
+    public volatile boolean down = false;
+
+    public StubServer(int port, Path recordings) throws IOException {
+        this.recordings = recordings;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stub-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /** A stub on a free port that uses the recordings in the default directory, if any */
+    public StubServer() throws IOException {
+        this(0, Paths.get(System.getProperty("jutge.recordings", "recordings")));
+    }
+
+    /** URL to pass to the JutgeApiClient constructor */
+    public String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+    }
+
+    /** Sets the response of a func, overriding its recording */
+    public void put(String func, byte[] multipart) {
+        responses.put(func, multipart);
+    }
+
+    /** Number of connections that have sent requests, by their client address */
+    public int connections() {
+        return clients.size();
+    }
+
+    /** Number of requests whose data part differs from the recorded one */
+    public long mismatches() {
+        return mismatches.get();
+    }
+
+    /** Number of requests received */
+    public long received() {
+        return received.get();
+    }
+
+    /** Number of requests or responses whose body was compressed */
+    public long compressed() {
+        return compressed.get();
+    }
+
+    private JsonElement request(String func) throws IOException {
+        JsonElement request = requests.get(func);
+        if (request == null) {
+            Path path = recordings.resolve(func + ".request");
+            request = Files.exists(path) ? JsonParser.parseString(Files.readString(path)) : JsonNull.INSTANCE;
+            requests.put(func, request);
+        }
+        return request;
+    }
+
+    private byte[] response(String func) throws IOException {
+        byte[] response = responses.get(func);
+        if (response == null) {
+            Path path = recordings.resolve(func + ".multipart");
+            response = Files.exists(path) ? Files.readAllBytes(path) : Recordings.synthetic(func);
+            if (response != null) {
+                responses.put(func, response);
+            }
+        }
+        return response;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            received.incrementAndGet();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (down) {
+                exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
+            clients.add(exchange.getRemoteAddress().toString());
+            String func = null;
+            boolean gzipped = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            if (gzipped) {
+                compressed.incrementAndGet();
+            }
+            try (InputStream in = gzipped ? new GZIPInputStream(exchange.getRequestBody())
+                    : exchange.getRequestBody()) {
+                JsonObject data = Record.dataOf(in, boundary);
+                if (data != null) {
+                    func = data.get("func").getAsString();
+                    JsonElement recorded = request(func);
+                    if (!recorded.isJsonNull() && !recorded.equals(data)) {
+                        mismatches.incrementAndGet();
+                    }
+                }
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            byte[] response = func == null ? null : response(func);
+            if (response == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type",
+                    "multipart/form-data; boundary=" + Recordings.boundaryOf(response));
+            String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (gzip && accepted != null && accepted.contains("gzip")) {
+                compressed.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody(), 64 * 1024)) {
+                    out.write(response);
+                }
+                return;
+            }
+            if (deflate && accepted != null && accepted.contains("deflate")) {
+                compressed.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Encoding", "deflate");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = new DeflaterOutputStream(exchange.getResponseBody())) {
+                    out.write(response);
+                }
+                return;
+            }
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+        }
+    }
+
+    public void close() {
+        server.stop(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+        Path recordings = Paths.get(args.length > 1 ? args[1] : "recordings");
+        StubServer stub = new StubServer(port, recordings);
+        System.out.println("Serving " + recordings + " at " + stub.url());
+        Thread.currentThread().join();
+    }
+}
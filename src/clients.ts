@@ -1,5 +1,5 @@
 import { genCppClient } from '@/clients/cpp/generator'
-import { genJavaClient } from '@/clients/java/generator'
+import { genJavaClient, genJavaNativeImageConfig } from '@/clients/java/generator'
 import { genJavaScriptClient } from '@/clients/javascript/generator'
 import { genPhpClient } from '@/clients/php/generator'
 import { genPythonClient } from '@/clients/python/generator'
@@ -69,7 +69,7 @@ export const generateClientSource = async (lang: Language, dir: ApiDir) => {
         case 'cpp':
             return await genCppClient(dir)
         case 'java':
-            return await genJavaClient(dir)
+            return await genJavaClient(dir, { lean: !!process.env.JAVA_LEAN })
         case 'javascript':
             return await genJavaScriptClient(dir)
         case 'php':
@@ -93,9 +93,42 @@ const createJavaJar = async (directory: ApiDir, destinationDir: string) => {
     await exec(`javac -cp ${gsonPath} *.java`, { cwd: javaDestination })
     await exec(`mkdir -p gson-temp`, { cwd: destinationDir })
     await exec(`jar xf ${gsonPath}`, { cwd: destinationDir + `/gson-temp` })
+
+    // native-image metadata, which native-image finds in the jar
+    const classes = (await fs.readdir(javaDestination)).filter((file) => file.endsWith('.class')).map((file) => file.slice(0, -6))
+    const nativeImage = path.join(destinationDir, 'gson-temp', 'META-INF', 'native-image', 'com.jutge', 'api')
+    await fs.mkdir(nativeImage, { recursive: true })
+    await Bun.write(nativeImage + '/reflect-config.json', genJavaNativeImageConfig(directory, classes))
+    await Bun.write(nativeImage + '/native-image.properties', 'Args = --enable-url-protocols=http,https\n')
+
     await exec(`jar cf JutgeApiClient-fat.jar -C . com/jutge/api -C gson-temp .`, { cwd: destinationDir })
 
     await exec(`rm -r com/ gson-temp/`, { cwd: destinationDir })
+
+    const fatJar = resolve(destinationDir, 'JutgeApiClient-fat.jar')
+
+    // AppCDS archive of the classes loaded by a training run against a stand-in server if asked to (see Training.java).
+    // The training class is compiled apart, so that it is not shipped in the jar, and the archive is dumped from the
+    // jar alone, so that it applies to any class path that starts with the jar.
+    if (process.env.JAVA_APPCDS) {
+        const training = resolve(destinationDir, 'training-classes')
+        const classList = resolve(destinationDir, 'JutgeApiClient.classlist')
+        try {
+            await exec(`javac -cp ${fatJar} -d ${training} ${resolve('src/clients/java/Training.java')}`)
+            await exec(`java -XX:DumpLoadedClassList=${classList} -cp ${fatJar}:${training} com.jutge.api.Training`)
+            const loaded = (await fs.readFile(classList, 'utf8')).split('\n').filter((line) => !line.includes('com/jutge/api/Training'))
+            await Bun.write(classList, loaded.join('\n'))
+            await exec(`java -Xshare:dump -XX:SharedClassListFile=${classList} -XX:SharedArchiveFile=JutgeApiClient.jsa -cp ${fatJar}`, { cwd: destinationDir })
+        } finally {
+            await fs.rm(training, { recursive: true, force: true })
+            await fs.rm(classList, { force: true })
+        }
+    }
+
+    // Build the JMH benchmarks against the new jar if asked to (they download JMH the first time)
+    if (process.env.JAVA_BENCHMARKS) {
+        await exec(`make jar JAR=${fatJar} OUT=${resolve(destinationDir)}`, { cwd: resolve('src/benchmarks/java') })
+    }
 }
 
 export const generateClient = async (url: string, lang: Language, destinationDir: string): Promise<string> => {
@@ -24,20 +24,46 @@ package com.jutge.api;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.net.ConnectException;
 import java.net.URI;
-import java.net.URL;
 import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonIOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 @SuppressWarnings("unused")
 
@@ -49,12 +75,197 @@ import com.google.gson.reflect.TypeToken;
 
 public class JutgeApiClient {
 
-    public String JUTGE_API_URL = "https://api.jutge.org/api";
+    public final String JUTGE_API_URL;
+
+    /** Client TTL values (in seconds) */
+    public final Map<String, Integer> clientTTLs = new ConcurrentHashMap<>();
+
+    /**
+     * Whether to use cache or not. Each cache hit decodes its own output, so
+     * changes to a result do not reach the next calls; the downloads of cached
+     * calls are shared, though, and should not be modified.
+     */
+    public volatile boolean useCache = true;
+
+    /** The cache */
+    public final ResponseCache cache = new ResponseCache(1024);
+
+    /**
+     * Persistent cache behind the memory cache, shared across processes, or null.
+     * Entries are keyed by the whole request, token included.
+     */
+    public volatile DiskCache diskCache = null;
+
+    /**
+     * Whether concurrent identical calls (same func, input and token) share a
+     * single request and a single decoded result. Shared results should not be
+     * modified.
+     */
+    public volatile boolean coalesce = false;
+
+    /** Timeout of each request, or null to use the one of the transport */
+    public volatile Duration timeout = null;
+
+    /** Timeouts for specific endpoints (e.g. "problems.getProblem"), over timeout */
+    public final Map<String, Duration> timeouts = new ConcurrentHashMap<>();
+
+    /** Read-only endpoints, which are retried on HTTP 5xx and can be hedged */
+    public final Set<String> readOnly = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of retries on connection errors and, for read-only endpoints, on
+     * other I/O errors and HTTP 5xx. Calls that upload streams are never retried.
+     */
+    public volatile int retries = 2;
+
+    /** Base delay of the exponential backoff between retries, with full jitter */
+    public volatile Duration retryBackoff = Duration.ofMillis(100);
+
+    /**
+     * Whether to hedge read-only endpoints: if a request takes longer than the p95
+     * of the recent latencies of its endpoint, a duplicate request is sent and the
+     * first response wins.
+     */
+    public volatile boolean hedge = false;
+
+    /** Hedging delay used until an endpoint has enough latency samples */
+    public volatile Duration hedgeDelay = Duration.ofMillis(250);
+
+    /**
+     * Requests whose body is in memory and has at least this number of bytes are
+     * sent compressed with gzip, or none if negative. If the server answers HTTP
+     * 415, they are sent uncompressed from then on. Responses are always
+     * compressed when the server supports it.
+     */
+    public volatile long compressionThreshold = -1;
+
+    private volatile boolean compressionRejected = false;
 
     // Models for Jutge API
 
     // MODELS_HERE
 
+    // Adapters for the models
+
+    /**
+     * Base class of the generated adapters, which read and write the models field
+     * by field without reflection.
+     */
+    private static abstract class ModelAdapter<T> extends TypeAdapter<T> {
+
+        protected static boolean readNull(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return true;
+            }
+            return false;
+        }
+
+        protected static String readString(JsonReader in) throws IOException {
+            if (readNull(in)) {
+                return null;
+            }
+            return in.peek() == JsonToken.BOOLEAN ? Boolean.toString(in.nextBoolean()) : in.nextString();
+        }
+
+        protected static int readInt(JsonReader in) throws IOException {
+            return readNull(in) ? 0 : in.nextInt();
+        }
+
+        protected static Integer readInteger(JsonReader in) throws IOException {
+            return readNull(in) ? null : in.nextInt();
+        }
+
+        protected static double readDouble(JsonReader in) throws IOException {
+            return readNull(in) ? 0 : in.nextDouble();
+        }
+
+        protected static Double readDoubleOrNull(JsonReader in) throws IOException {
+            return readNull(in) ? null : in.nextDouble();
+        }
+
+        protected static boolean readBoolean(JsonReader in) throws IOException {
+            return readNull(in) ? false : in.nextBoolean();
+        }
+
+        protected static Boolean readBooleanOrNull(JsonReader in) throws IOException {
+            return readNull(in) ? null : in.nextBoolean();
+        }
+    }
+
+    /** Reads arrays of integers into int[], without boxing their elements */
+    private static class IntArrayAdapter extends ModelAdapter<int[]> {
+        @Override
+        public int[] read(JsonReader in) throws IOException {
+            if (readNull(in)) {
+                return null;
+            }
+            int[] values = new int[16];
+            int size = 0;
+            in.beginArray();
+            while (in.hasNext()) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, 2 * size);
+                }
+                values[size++] = in.nextInt();
+            }
+            in.endArray();
+            return Arrays.copyOf(values, size);
+        }
+
+        @Override
+        public void write(JsonWriter out, int[] values) throws IOException {
+            if (values == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            for (int value : values) {
+                out.value(value);
+            }
+            out.endArray();
+        }
+    }
+
+    /** Reads arrays of numbers into double[], without boxing their elements */
+    private static class DoubleArrayAdapter extends ModelAdapter<double[]> {
+        @Override
+        public double[] read(JsonReader in) throws IOException {
+            if (readNull(in)) {
+                return null;
+            }
+            double[] values = new double[16];
+            int size = 0;
+            in.beginArray();
+            while (in.hasNext()) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, 2 * size);
+                }
+                values[size++] = in.nextDouble();
+            }
+            in.endArray();
+            return Arrays.copyOf(values, size);
+        }
+
+        @Override
+        public void write(JsonWriter out, double[] values) throws IOException {
+            if (values == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            for (double value : values) {
+                out.value(value);
+            }
+            out.endArray();
+        }
+    }
+
+    // ADAPTERS_HERE
+
+    /** Gson instance shared by all the calls, with the generated model adapters */
+    public static final Gson GSON = new GsonBuilder().registerTypeAdapterFactory(new ModelAdapterFactory()).create();
+
     // Client types
 
     private static class Error {
@@ -84,324 +295,4391 @@ public class JutgeApiClient {
         }
     }
 
-    public static class Download {
+    /**
+     * A file received from the API. Small files are kept in data; files larger
+     * than JutgeApiClient.spoolThreshold are spooled to a temporary file at path
+     * and data is null. Closing a download deletes its temporary file, unless the
+     * download is shared by the cache or by coalesced calls; the temporary file
+     * of a download that is never closed is deleted once it is unreachable.
+     */
+    public static class Download implements AutoCloseable {
+        private static final java.lang.ref.Cleaner CLEANER = java.lang.ref.Cleaner.create();
+
         public byte[] data;
         public String name;
         public String type;
+        public Path path;
+        private boolean shared;
+        private java.lang.ref.Cleaner.Cleanable cleanup;
 
-        public void write(String path) throws IOException {
-            FileOutputStream fos = new FileOutputStream(path);
-            fos.write(data);
-            fos.close();
+        /** Takes the temporary file at path, deleted when no longer needed */
+        private void spooled(Path path) {
+            this.path = path;
+            // the action must not reach this download, or it would never be unreachable
+            cleanup = CLEANER.register(this, () -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // left to the temporary directory
+                }
+            });
         }
-    }
 
-    private static class Execution {
-        public JsonElement output;
-        public Download[] ofiles;
-    }
+        /** Returns the size of the content in bytes */
+        public long size() throws IOException {
+            return data != null ? data.length : Files.size(path);
+        }
 
-    public static class Meta {
-        public String token;
+        /** Returns a stream over the content, wherever it is stored */
+        public InputStream inputStream() throws IOException {
+            return data != null ? new ByteArrayInputStream(data) : Files.newInputStream(path);
+        }
 
-        public Meta(String token) {
-            this.token = token;
+        /** Returns the content as a byte array, reading it from disk if needed */
+        public byte[] getData() throws IOException {
+            return data != null ? data : Files.readAllBytes(path);
+        }
+
+        public void write(String path) throws IOException {
+            if (data != null) {
+                Files.write(Path.of(path), data);
+                return;
+            }
+            // Let the kernel copy the spooled file without going through the heap
+            try (FileChannel source = FileChannel.open(this.path, StandardOpenOption.READ);
+                    FileChannel target = FileChannel.open(Path.of(path), StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            }
         }
-    }
 
-    public Meta meta = null;
+        public void close() throws IOException {
+            if (path != null && !shared) {
+                Files.deleteIfExists(path);
+                if (cleanup != null) {
+                    cleanup.clean();
+                }
+            }
+        }
+    }
 
     /**
-     * A client for executing multipart/form-data HTTP requests with binary file
-     * handling
+     * The content of an input file: bytes in memory, a file on disk or a stream.
+     * Files and streams are sent without loading them in memory.
      */
-    private static class MultipartClient {
-
-        // Most of this class written by claude.ai, under the direction of jpetit.
-
-        public Execution execute(String url, String func, JsonElement ijson, byte[][] ifiles, Meta meta)
-                throws Exception {
-            String boundary = UUID.randomUUID().toString();
-            HttpURLConnection connection = setupConnection(url, boundary);
+    public static class Upload {
+        private final byte[] data;
+        private final Path path;
+        private final InputStream stream;
+        private final long length;
 
-            try (OutputStream outputStream = connection.getOutputStream()) {
-                // Write the data part
-                JsonObject inputObject = new JsonObject();
-                inputObject.addProperty("func", func);
-                if (meta != null) {
-                    inputObject.add("meta", new Gson().toJsonTree(meta).getAsJsonObject());
-                }
-                inputObject.add("input", ijson);
-                String data = inputObject.toString();
-                writeDataPart(outputStream, boundary, "data", data);
+        private Upload(byte[] data, Path path, InputStream stream, long length) {
+            this.data = data;
+            this.path = path;
+            this.stream = stream;
+            this.length = length;
+        }
 
-                // Write all input file parts
-                for (int i = 0; i < ifiles.length; i++) {
-                    writeFilePart(outputStream, boundary, "file_" + i, ifiles[i]);
-                }
+        public static Upload of(byte[] data) {
+            return new Upload(data, null, null, data.length);
+        }
 
-                // Write the final boundary
-                writeFinalBoundary(outputStream, boundary);
+        public static Upload of(Path path) {
+            return new Upload(null, path, null, -1);
+        }
 
-                // Check response code
-                int responseCode = connection.getResponseCode();
-                if (responseCode != HttpURLConnection.HTTP_OK) {
-                    throw new Exception("HTTP error code: " + responseCode);
-                }
+        /** A stream of unknown length, which will be sent chunked */
+        public static Upload of(InputStream stream) {
+            return new Upload(null, null, stream, -1);
+        }
 
-                // Parse the multipart response
-                return parseMultipartResponse(connection);
-            }
+        public static Upload of(InputStream stream, long length) {
+            return new Upload(null, null, stream, length);
         }
 
-        private HttpURLConnection setupConnection(String url, String boundary) throws Exception {
-            URI uri = new URI(url);
-            URL urlObj = uri.toURL();
-            HttpURLConnection connection = (HttpURLConnection) urlObj.openConnection();
-            connection.setDoOutput(true);
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-            connection.setRequestProperty("Connection", "Keep-Alive");
-            String jutgeDomain = System.getenv("JUTGE_DOMAIN");
-            if (jutgeDomain != null && !jutgeDomain.isEmpty()) {
-                connection.setRequestProperty("x-forwarded-host", jutgeDomain);
+        public static Upload[] of(byte[][] data) {
+            Upload[] uploads = new Upload[data.length];
+            for (int i = 0; i < data.length; i++) {
+                uploads[i] = of(data[i]);
             }
-            return connection;
+            return uploads;
         }
 
-        private void writeDataPart(OutputStream outputStream, String boundary, String name, String value)
-                throws Exception {
-            String header = "--" + boundary + "\r\n" +
-                    "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n";
-            outputStream.write(header.getBytes());
-            outputStream.write(value.getBytes());
-            outputStream.write("\r\n".getBytes());
+        public static Upload[] of(Path[] paths) {
+            Upload[] uploads = new Upload[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                uploads[i] = of(paths[i]);
+            }
+            return uploads;
         }
 
-        private void writeFilePart(OutputStream outputStream, String boundary, String name, byte[] fileData)
-                throws Exception {
-            String header = "--" + boundary + "\r\n" +
-                    "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + name + "\"\r\n" +
-                    "Content-Type: application/octet-stream\r\n\r\n";
-            outputStream.write(header.getBytes());
-            outputStream.write(fileData);
-            outputStream.write("\r\n".getBytes());
+        public static Upload[] of(InputStream[] streams) {
+            Upload[] uploads = new Upload[streams.length];
+            for (int i = 0; i < streams.length; i++) {
+                uploads[i] = of(streams[i]);
+            }
+            return uploads;
         }
 
-        private void writeFinalBoundary(OutputStream outputStream, String boundary) throws Exception {
-            outputStream.write(("--" + boundary + "--\r\n").getBytes());
+        /** Returns the length in bytes, or -1 if it is not known in advance */
+        public long length() throws IOException {
+            return path != null ? Files.size(path) : length;
         }
 
-        private Execution parseMultipartResponse(HttpURLConnection connection) throws Exception {
-            String contentType = connection.getContentType();
-            if (contentType == null || !contentType.startsWith("multipart/form-data")) {
-                throw new Exception("Response is not multipart/form-data: " + contentType);
+        public InputStream open() throws IOException {
+            if (data != null) {
+                return new ByteArrayInputStream(data);
+            } else if (path != null) {
+                return new BufferedInputStream(Files.newInputStream(path), 64 * 1024);
+            } else {
+                return stream;
             }
+        }
+    }
 
-            // Extract boundary from content type
-            String boundary = extractBoundary(contentType);
-            InputStream inputStream = connection.getInputStream();
-            byte[] responseBytes = readAllBytes(inputStream);
-
-            Execution result = new Execution();
-            ArrayList<Download> downloads = new ArrayList<>();
-
-            // Convert boundary to bytes for binary searching
-            byte[] boundaryBytes = ("--" + boundary).getBytes();
-            byte[] finalBoundaryBytes = ("--" + boundary + "--").getBytes();
+    /**
+     * Writes the input of an endpoint as JSON
+     */
+    public interface Input {
+        void write(JsonWriter out) throws IOException;
+    }
 
-            // Find all boundary positions
-            ArrayList<Integer> boundaryPositions = findAllBoundaries(responseBytes, boundaryBytes, finalBoundaryBytes);
+    private static class Execution {
+        public byte[] data;
+        public Download[] ofiles;
+        private TypeAdapter<?> decoder;
+        private Object decoded;
 
-            if (boundaryPositions.size() < 2) {
-                throw new Exception("Could not find enough boundaries in response");
+        /**
+         * Reads the output in the data part with the given adapter. The result is
+         * decoded once and shared by the calls that get this execution, which are
+         * only coalesced calls: the cache hands out copies.
+         */
+        @SuppressWarnings("unchecked")
+        public synchronized <T> T output(TypeAdapter<T> adapter) {
+            if (decoder != adapter) {
+                decoded = read(adapter);
+                decoder = adapter;
             }
+            return (T) decoded;
+        }
 
-            // Process each part
-            for (int i = 0; i < boundaryPositions.size() - 1; i++) {
-                int start = boundaryPositions.get(i);
-                int end = boundaryPositions.get(i + 1);
+        /**
+         * Takes the output decoded from an earlier data part whose output has the
+         * same bytes, so that it is not decoded again.
+         */
+        public synchronized void reuse(TypeAdapter<?> adapter, Object output) {
+            if (decoder != adapter) {
+                decoded = output;
+                decoder = adapter;
+            }
+        }
 
-                // Extract part content between boundaries
-                byte[] partBytes = new byte[end - start];
-                System.arraycopy(responseBytes, start, partBytes, 0, partBytes.length);
+        private <T> T read(TypeAdapter<T> adapter) {
+            try (JsonReader in = new JsonReader(new Utf8Reader(data))) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    if (in.nextName().equals("output")) {
+                        return adapter.read(in);
+                    }
+                    in.skipValue();
+                }
+                return null;
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            }
+        }
 
-                // Find the end of headers (double CRLF)
-                int headerEnd = findHeaderEnd(partBytes);
-                if (headerEnd == -1) {
-                    continue; // Skip malformed part
+        /** Returns the name of the error in the data part, or null if there is none */
+        public String errorName() {
+            try (JsonReader in = new JsonReader(new Utf8Reader(data))) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    if (in.nextName().equals("error") && in.peek() == JsonToken.BEGIN_OBJECT) {
+                        in.beginObject();
+                        while (in.hasNext()) {
+                            if (in.nextName().equals("name") && in.peek() == JsonToken.STRING) {
+                                return in.nextString();
+                            }
+                            in.skipValue();
+                        }
+                        return "Error";
+                    }
+                    in.skipValue();
                 }
+                return null;
+            } catch (IOException | IllegalStateException e) {
+                return null;
+            }
+        }
 
-                // Extract headers as string
-                String headers = new String(partBytes, 0, headerEnd);
+        /** Returns an execution of the same response that decodes its own output */
+        public Execution copy() {
+            Execution copy = new Execution();
+            copy.data = data;
+            copy.ofiles = ofiles.clone();
+            return copy;
+        }
 
-                // Extract content after headers
-                byte[] contentBytes = new byte[partBytes.length - headerEnd];
-                System.arraycopy(partBytes, headerEnd, contentBytes, 0, contentBytes.length);
+        /**
+         * Marks the files as shared by several calls, so that closing them in one
+         * call does not delete them under the others.
+         */
+        public void share() {
+            for (Download download : ofiles) {
+                download.shared = true;
+            }
+        }
+    }
 
-                // Strip final CRLF that precedes the next boundary
-                contentBytes = stripTrailingCRLF(contentBytes);
+    public static class Meta {
+        public final String token;
 
-                if (i == 0) {
-                    // First part is the output string
-                    String data = new String(contentBytes);
-                    JsonObject object = new Gson().fromJson(data, JsonObject.class);
-                    result.output = object.get("output");
-                } else {
-                    // Subsequent parts are binary files
-                    Download download = new Download();
-                    download.data = contentBytes;
+        public Meta(String token) {
+            this.token = token;
+        }
+    }
 
-                    // Extract name and type from headers
-                    String contentDisposition = extractHeader(headers, "Content-Disposition");
-                    String contentTypeHeader = extractHeader(headers, "Content-Type");
+    /**
+     * An HTTP request ready to be sent by a Transport
+     */
+    public static class TransportRequest {
+        public final String url;
+        public final Map<String, String> headers;
+        public Upload[] body;
+        private Upload[] identity;
 
-                    if (contentDisposition != null) {
-                        String filename = extractFilenameFromContentDisposition(contentDisposition);
-                        download.name = filename != null ? filename : "file_" + (i - 1);
-                    } else {
-                        download.name = "file_" + (i - 1);
-                    }
+        /** Timeout until the response headers are received, null for the transport default */
+        public Duration timeout;
 
-                    download.type = contentTypeHeader != null ? contentTypeHeader : "application/octet-stream";
+        public TransportRequest(String url, Map<String, String> headers, Upload[] body) {
+            this.url = url;
+            this.headers = headers;
+            this.body = body;
+        }
 
-                    downloads.add(download);
-                }
+        /** Returns this request to another URL, sharing its headers and body */
+        public TransportRequest withUrl(String url) {
+            if (url.equals(this.url)) {
+                return this;
             }
-
-            result.ofiles = downloads.toArray(new Download[0]);
-            return result;
+            TransportRequest request = new TransportRequest(url, headers, body);
+            request.timeout = timeout;
+            return request;
         }
 
-        private String extractHeader(String headers, String headerName) {
-            for (String line : headers.split("\r\n")) {
-                if (line.startsWith(headerName + ":")) {
-                    return line.substring(headerName.length() + 1).trim();
+        /** Returns the length of the body, or -1 if it is not known in advance */
+        public long contentLength() throws IOException {
+            long total = 0;
+            for (Upload segment : body) {
+                long length = segment.length();
+                if (length < 0) {
+                    return -1;
                 }
+                total += length;
             }
-            return null;
+            return total;
         }
 
-        private String extractFilenameFromContentDisposition(String contentDisposition) {
-            String[] parts = contentDisposition.split(";");
-            for (String part : parts) {
-                part = part.trim();
-                if (part.startsWith("filename=")) {
-                    String filename = part.substring("filename=".length());
-                    // Remove quotes if present
-                    if (filename.startsWith("\"") && filename.endsWith("\"")) {
-                        filename = filename.substring(1, filename.length() - 1);
-                    }
-                    return filename;
+        /**
+         * Replaces a body in memory by its gzip compression, unless it is already
+         * compressed, and returns whether it did.
+         */
+        public boolean compress() {
+            if (identity != null || !inMemory()) {
+                return false;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (java.util.zip.GZIPOutputStream out = new java.util.zip.GZIPOutputStream(bytes, 8 * 1024)) {
+                for (Upload segment : body) {
+                    out.write(segment.data);
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            return null;
+            identity = body;
+            body = new Upload[] { Upload.of(bytes.toByteArray()) };
+            headers.put("Content-Encoding", "gzip");
+            return true;
         }
 
-        private byte[] stripTrailingCRLF(byte[] data) {
-            if (data.length >= 2 && data[data.length - 2] == '\r' && data[data.length - 1] == '\n') {
-                byte[] result = new byte[data.length - 2];
-                System.arraycopy(data, 0, result, 0, data.length - 2);
-                return result;
+        /** Restores the body before compress, and returns whether it was compressed */
+        public boolean uncompress() {
+            if (identity == null) {
+                return false;
             }
-            return data;
+            body = identity;
+            identity = null;
+            headers.remove("Content-Encoding");
+            return true;
         }
 
-        private int findHeaderEnd(byte[] partBytes) {
-            // Look for double CRLF which separates headers from content
-            for (int i = 0; i < partBytes.length - 3; i++) {
-                if (partBytes[i] == '\r' && partBytes[i + 1] == '\n' &&
-                        partBytes[i + 2] == '\r' && partBytes[i + 3] == '\n') {
-                    return i + 4;
+        /** Returns whether all the segments of the body are in memory */
+        public boolean inMemory() {
+            for (Upload segment : body) {
+                if (segment.data == null) {
+                    return false;
                 }
             }
-            return -1;
+            return true;
         }
 
-        private ArrayList<Integer> findAllBoundaries(byte[] data, byte[] boundaryBytes, byte[] finalBoundaryBytes) {
-            ArrayList<Integer> positions = new ArrayList<>();
-
-            // Find all regular boundaries
-            int pos = indexOf(data, boundaryBytes, 0);
-            while (pos != -1) {
-                positions.add(pos);
-                pos = indexOf(data, boundaryBytes, pos + boundaryBytes.length);
-            }
-
-            // Find final boundary if it exists
-            pos = indexOf(data, finalBoundaryBytes, 0);
-            if (pos != -1) {
-                positions.add(pos);
+        /** Returns whether the body can be sent again, that is, it reads no streams */
+        public boolean replayable() {
+            for (Upload segment : body) {
+                if (segment.stream != null) {
+                    return false;
+                }
             }
-
-            return positions;
+            return true;
         }
 
-        private int indexOf(byte[] data, byte[] pattern, int start) {
-            for (int i = start; i <= data.length - pattern.length; i++) {
-                boolean found = true;
-                for (int j = 0; j < pattern.length; j++) {
-                    if (data[i + j] != pattern[j]) {
-                        found = false;
-                        break;
+        /** Returns a stream that reads the segments of the body one after the other */
+        public InputStream openBody() {
+            Iterator<Upload> segments = Arrays.asList(body).iterator();
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+                public boolean hasMoreElements() {
+                    return segments.hasNext();
+                }
+
+                public InputStream nextElement() {
+                    try {
+                        return segments.next().open();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
                 }
-                if (found) {
-                    return i;
+            });
+        }
+    }
+
+    /**
+     * An HTTP response received by a Transport. The body must be closed by the
+     * caller.
+     */
+    public static class TransportResponse {
+        public final int statusCode;
+        public final String contentType;
+        public final InputStream body;
+
+        /** Content-Encoding of the body (e.g. gzip), or null if it is not encoded */
+        public final String contentEncoding;
+
+        public TransportResponse(int statusCode, String contentType, InputStream body) {
+            this(statusCode, contentType, body, null);
+        }
+
+        public TransportResponse(int statusCode, String contentType, InputStream body, String contentEncoding) {
+            this.statusCode = statusCode;
+            this.contentType = contentType;
+            this.body = body;
+            this.contentEncoding = contentEncoding;
+        }
+    }
+
+    /**
+     * Sends POST requests to the API. Replace JutgeApiClient.transport to use
+     * another HTTP stack or a local stand-in server.
+     */
+    public interface Transport {
+        TransportResponse send(TransportRequest request) throws Exception;
+
+        /**
+         * Sends a request without blocking the caller. By default, the blocking send
+         * is run on the given executor.
+         */
+        default CompletableFuture<TransportResponse> sendAsync(TransportRequest request, Executor executor) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return send(request);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
                 }
+            }, executor);
+        }
+    }
+
+    /**
+     * Default transport: a single java.net.http.HttpClient that is shared by all
+     * the calls of a JutgeApiClient, so that connections are reused and HTTP/2 is
+     * used when the server supports it.
+     *
+     * The size of the connection pool is controlled by the JDK system property
+     * jdk.httpclient.connectionPoolSize.
+     */
+    public static class HttpTransport implements Transport {
+
+        private final HttpClient client;
+        private final Duration requestTimeout;
+
+        /** Parsed URLs, as requests go to a few base URLs */
+        private final ConcurrentHashMap<String, URI> uris = new ConcurrentHashMap<>();
+
+        public HttpTransport() {
+            this(Duration.ofSeconds(10), Duration.ofSeconds(120), null);
+        }
+
+        /**
+         * @param connectTimeout timeout to establish a connection
+         * @param requestTimeout timeout until the response headers are received (null
+         *                       for none)
+         * @param executor       executor for the asynchronous tasks of the
+         *                       HttpClient (null for its default one)
+         */
+        public HttpTransport(Duration connectTimeout, Duration requestTimeout, Executor executor) {
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .connectTimeout(connectTimeout);
+            if (executor != null) {
+                builder.executor(executor);
             }
-            return -1;
+            this.client = builder.build();
+            this.requestTimeout = requestTimeout;
         }
 
-        private byte[] readAllBytes(InputStream inputStream) throws Exception {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            int bytesRead;
-            byte[] data = new byte[4096];
+        public TransportResponse send(TransportRequest request) throws Exception {
+            HttpResponse<InputStream> response = client.send(buildRequest(request),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            return toTransportResponse(response);
+        }
 
-            while ((bytesRead = inputStream.read(data, 0, data.length)) != -1) {
-                buffer.write(data, 0, bytesRead);
+        public CompletableFuture<TransportResponse> sendAsync(TransportRequest request, Executor executor) {
+            HttpRequest httpRequest;
+            try {
+                httpRequest = buildRequest(request);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
             }
+            return client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofInputStream())
+                    .thenApply(this::toTransportResponse);
+        }
 
-            return buffer.toByteArray();
+        private HttpRequest buildRequest(TransportRequest request) throws IOException {
+            HttpRequest.BodyPublisher publisher;
+            if (request.inMemory()) {
+                ArrayList<byte[]> segments = new ArrayList<>();
+                for (Upload segment : request.body) {
+                    segments.add(segment.data);
+                }
+                publisher = HttpRequest.BodyPublishers.ofByteArrays(segments);
+            } else {
+                publisher = HttpRequest.BodyPublishers.ofInputStream(request::openBody);
+            }
+            long contentLength = request.contentLength();
+            if (contentLength >= 0) {
+                // Fixed-length streaming; otherwise, the body is sent chunked
+                publisher = HttpRequest.BodyPublishers.fromPublisher(publisher, contentLength);
+            }
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri(request.url)).POST(publisher);
+            for (Map.Entry<String, String> header : request.headers.entrySet()) {
+                builder.header(header.getKey(), header.getValue());
+            }
+            if (request.timeout != null) {
+                builder.timeout(request.timeout);
+            } else if (requestTimeout != null) {
+                builder.timeout(requestTimeout);
+            }
+            return builder.build();
         }
 
-        private String extractBoundary(String contentType) {
-            String[] parts = contentType.split(";");
-            for (String part : parts) {
-                part = part.trim();
-                if (part.startsWith("boundary=")) {
-                    String boundary = part.substring("boundary=".length()).trim();
-                    // Remove quotes if present
-                    if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
-                        boundary = boundary.substring(1, boundary.length() - 1);
-                    }
-                    return boundary;
+        private URI uri(String url) {
+            URI uri = uris.get(url);
+            if (uri == null) {
+                uri = URI.create(url);
+                if (uris.size() < 64) {
+                    uris.put(url, uri);
                 }
             }
-            throw new IllegalArgumentException("Boundary not found in Content-Type: " + contentType);
+            return uri;
         }
-    }
 
-    public Execution execute(String func, JsonElement ijson, byte[][] ifiles) throws Exception {
-        var client = new MultipartClient();
-        return client.execute(JUTGE_API_URL, func, ijson, ifiles, meta);
+        private TransportResponse toTransportResponse(HttpResponse<InputStream> response) {
+            String contentType = response.headers().firstValue("Content-Type").orElse(null);
+            String contentEncoding = response.headers().firstValue("Content-Encoding").orElse(null);
+            return new TransportResponse(response.statusCode(), contentType, response.body(), contentEncoding);
+        }
     }
 
-    public void login(String email, String password) throws Exception {
-        var credentialsIn = new CredentialsIn();
-        credentialsIn.email = email;
-        credentialsIn.password = password;
-        var credentialsOut = auth.login(credentialsIn);
-        if (credentialsOut.token.equals("")) {
-            System.err.println(credentialsOut.error);
-            System.exit(1);
+    private static final Transport DEFAULT_TRANSPORT = new HttpTransport();
+
+    /** Transport used to talk with the API. By default, one shared by all clients. */
+    public volatile Transport transport = DEFAULT_TRANSPORT;
+
+    /** Downloads larger than this number of bytes are spooled to temporary files */
+    public volatile long spoolThreshold = 1024 * 1024;
+
+    private static final Executor DEFAULT_EXECUTOR = defaultExecutor();
+
+    /**
+     * Executor that runs the response parsing of asynchronous calls. By default,
+     * one virtual thread per task (Java 21+) or a cached pool of daemon threads.
+     */
+    public volatile Executor executor = DEFAULT_EXECUTOR;
+
+    private static Executor defaultExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "jutge-api-client");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-        meta = new Meta(credentialsOut.token);
     }
 
-    public void logout() throws Exception {
-        auth.logout();
-        meta = null;
+    /**
+     * Measurements of one call, given to the metrics listener. Times are in
+     * nanoseconds. The exchange phase spans the connection, the sending of the
+     * request and the wait for the response headers, which the HttpClient does
+     * not report separately; download is the time blocked reading the response,
+     * and parse is the rest of the time spent in the multipart parser. Queue is
+     * the time the requests waited for the scheduler, which is not part of the
+     * exchange.
+     */
+    public static class CallMetrics {
+        public final String func;
+        public int status;
+        public String error;
+        public boolean cached;
+        public boolean coalesced;
+        public long bytesSent = -1;
+        public long bytesReceived;
+        public int ifiles;
+        public int ofiles;
+        public long encodeNanos;
+        public long queueNanos;
+        public long exchangeNanos;
+        public long downloadNanos;
+        public long parseNanos;
+        public long decodeNanos;
+        public long totalNanos;
+
+        private final long start = System.nanoTime();
+        private final CallEvent event;
+
+        public CallMetrics(String func) {
+            this.func = func;
+            this.event = recordingCalls() ? new CallEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+        }
+    }
+
+    /**
+     * Receives the metrics of every call of a client. It is called on the thread
+     * that completes the call, so it must be thread safe and fast.
+     */
+    public interface MetricsListener {
+        void onCall(CallMetrics call);
+    }
+
+    /** Listener of the metrics of the calls, null for none */
+    public volatile MetricsListener metrics = null;
+
+    /** JFR event of a call, with the same measurements as CallMetrics */
+    @jdk.jfr.Name("com.jutge.api.Call")
+    @jdk.jfr.Label("Jutge API Call")
+    @jdk.jfr.Category("Jutge API")
+    static class CallEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Function")
+        String func;
+        @jdk.jfr.Label("HTTP Status")
+        int status;
+        @jdk.jfr.Label("Error")
+        String error;
+        @jdk.jfr.Label("Cached")
+        boolean cached;
+        @jdk.jfr.Label("Coalesced")
+        boolean coalesced;
+        @jdk.jfr.Label("Bytes Sent")
+        @jdk.jfr.DataAmount
+        long bytesSent;
+        @jdk.jfr.Label("Bytes Received")
+        @jdk.jfr.DataAmount
+        long bytesReceived;
+        @jdk.jfr.Label("Input Files")
+        int ifiles;
+        @jdk.jfr.Label("Output Files")
+        int ofiles;
+        @jdk.jfr.Label("Encode")
+        @jdk.jfr.Timespan
+        long encode;
+        @jdk.jfr.Label("Queue")
+        @jdk.jfr.Timespan
+        long queue;
+        @jdk.jfr.Label("Exchange")
+        @jdk.jfr.Timespan
+        long exchange;
+        @jdk.jfr.Label("Download")
+        @jdk.jfr.Timespan
+        long download;
+        @jdk.jfr.Label("Parse")
+        @jdk.jfr.Timespan
+        long parse;
+        @jdk.jfr.Label("Decode")
+        @jdk.jfr.Timespan
+        long decode;
+    }
+
+    /**
+     * Type of the JFR event of calls. Looking it up initializes JFR, which takes
+     * longer than starting the client, so it is only done once JFR is running.
+     */
+    private static class CallEventType {
+        static final jdk.jfr.EventType TYPE = jdk.jfr.EventType.getEventType(CallEvent.class);
+    }
+
+    private static boolean recordingCalls() {
+        return jdk.jfr.FlightRecorder.isInitialized() && CallEventType.TYPE.isEnabled();
+    }
+
+    /** Returns the metrics to fill for a call, or null if nobody observes them */
+    private CallMetrics observe(String func) {
+        return metrics != null || recordingCalls() ? new CallMetrics(func) : null;
+    }
+
+    private void report(CallMetrics call) {
+        call.totalNanos = System.nanoTime() - call.start;
+        CallEvent event = call.event;
+        if (event != null && event.shouldCommit()) {
+            event.func = call.func;
+            event.status = call.status;
+            event.error = call.error;
+            event.cached = call.cached;
+            event.coalesced = call.coalesced;
+            event.bytesSent = call.bytesSent;
+            event.bytesReceived = call.bytesReceived;
+            event.ifiles = call.ifiles;
+            event.ofiles = call.ofiles;
+            event.encode = call.encodeNanos;
+            event.queue = call.queueNanos;
+            event.exchange = call.exchangeNanos;
+            event.download = call.downloadNanos;
+            event.parse = call.parseNanos;
+            event.decode = call.decodeNanos;
+            event.commit();
+        }
+        MetricsListener listener = metrics;
+        if (listener != null) {
+            listener.onCall(call);
+        }
+    }
+
+    /**
+     * Histogram of non-negative values (e.g. nanoseconds) with exponential buckets
+     * split linearly in 8, so that percentiles are within 12.5% of the real value.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            value = Math.max(value, 0);
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return (exponent - 2) * SUB_BUCKETS + sub;
+        }
+
+        /** Largest value that falls in the bucket at the given index */
+        private static long highest(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + 2;
+            long sub = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public double mean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        /** Returns the value below which the given percentage (0-100) of values fall */
+        public long percentile(double percentage) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(n * percentage / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highest(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * Metrics listener that aggregates the calls of each func in histograms of
+     * their phases and in counters.
+     */
+    public static class MetricsRecorder implements MetricsListener {
+
+        public static class FuncMetrics {
+            public final Histogram total = new Histogram();
+            public final Histogram encode = new Histogram();
+            public final Histogram queue = new Histogram();
+            public final Histogram exchange = new Histogram();
+            public final Histogram download = new Histogram();
+            public final Histogram parse = new Histogram();
+            public final Histogram decode = new Histogram();
+            public final AtomicLong bytesSent = new AtomicLong();
+            public final AtomicLong bytesReceived = new AtomicLong();
+            public final AtomicLong ifiles = new AtomicLong();
+            public final AtomicLong ofiles = new AtomicLong();
+            public final AtomicLong cached = new AtomicLong();
+            public final Map<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+            public final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+        }
+
+        private final Map<String, FuncMetrics> funcs = new ConcurrentHashMap<>();
+
+        public void onCall(CallMetrics call) {
+            FuncMetrics m = funcs.computeIfAbsent(call.func, func -> new FuncMetrics());
+            m.total.record(call.totalNanos);
+            m.encode.record(call.encodeNanos);
+            if (call.cached || call.coalesced) {
+                // no request of its own
+                m.cached.incrementAndGet();
+            } else {
+                m.queue.record(call.queueNanos);
+                m.exchange.record(call.exchangeNanos);
+                m.download.record(call.downloadNanos);
+                m.parse.record(call.parseNanos);
+                m.bytesSent.addAndGet(Math.max(call.bytesSent, 0));
+                m.bytesReceived.addAndGet(call.bytesReceived);
+            }
+            m.decode.record(call.decodeNanos);
+            m.ifiles.addAndGet(call.ifiles);
+            m.ofiles.addAndGet(call.ofiles);
+            if (call.status != 0) {
+                m.statuses.computeIfAbsent(call.status, status -> new AtomicLong()).incrementAndGet();
+            }
+            if (call.error != null) {
+                m.errors.computeIfAbsent(call.error, error -> new AtomicLong()).incrementAndGet();
+            }
+        }
+
+        /** Metrics of each func that has been called */
+        public Map<String, FuncMetrics> funcs() {
+            return Collections.unmodifiableMap(funcs);
+        }
+    }
+
+    /** Counts the bytes read and the time blocked reading from a response body */
+    private static class MeteredInputStream extends FilterInputStream {
+        private final CallMetrics metrics;
+
+        MeteredInputStream(InputStream in, CallMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = in.read();
+            metrics.downloadNanos += System.nanoTime() - start;
+            if (b >= 0) {
+                metrics.bytesReceived++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long start = System.nanoTime();
+            int n = in.read(buffer, offset, length);
+            metrics.downloadNanos += System.nanoTime() - start;
+            if (n > 0) {
+                metrics.bytesReceived += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * A thread-safe pool of byte arrays of one size, so that the buffers of a
+     * call are reused by the following ones instead of becoming garbage. An empty
+     * pool allocates a new array, and a full one drops the arrays given back to
+     * it, so it never keeps more than its capacity.
+     *
+     * The pool is shared by all threads under a lock: buffers kept per thread
+     * would be lost with virtual threads and held forever by idle pool threads.
+     */
+    static class BufferPool {
+
+        private static final int CAPACITY = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+        /** Windows of MultipartReader and buffers of the decompression */
+        static final BufferPool WINDOWS = new BufferPool(64 * 1024, CAPACITY);
+
+        /** Initial buffers of ByteSink: data parts and small downloads */
+        static final BufferPool CHUNKS = new BufferPool(8 * 1024, CAPACITY);
+
+        private final int size;
+        private final byte[][] free;
+        private int count = 0;
+
+        BufferPool(int size, int capacity) {
+            this.size = size;
+            this.free = new byte[capacity][];
+        }
+
+        /** Returns a buffer of the size of the pool, with arbitrary contents */
+        public byte[] take() {
+            synchronized (this) {
+                if (count > 0) {
+                    byte[] buffer = free[--count];
+                    free[count] = null;
+                    return buffer;
+                }
+            }
+            return new byte[size];
+        }
+
+        /** Gives back a buffer that is no longer used; buffers of other sizes are dropped */
+        public synchronized void give(byte[] buffer) {
+            if (buffer.length == size && count < free.length) {
+                free[count++] = buffer;
+            }
+        }
+
+        /** Number of buffers in the pool */
+        public synchronized int available() {
+            return count;
+        }
+    }
+
+    /**
+     * An output stream to a byte array that starts as a buffer of
+     * BufferPool.CHUNKS and grows as needed. Closing it gives the buffer back, so
+     * the bytes must be copied out with toByteArray or writeTo before.
+     */
+    static class ByteSink extends OutputStream {
+        private byte[] buffer = BufferPool.CHUNKS.take();
+        private int count = 0;
+
+        /** Makes room for n more bytes */
+        private void ensure(int n) {
+            if (count + n > buffer.length) {
+                byte[] grown = Arrays.copyOf(buffer, Math.max(2 * buffer.length, count + n));
+                BufferPool.CHUNKS.give(buffer);
+                buffer = grown;
+            }
+        }
+
+        public void write(int b) {
+            ensure(1);
+            buffer[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, count);
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, count);
+        }
+
+        public void close() {
+            if (buffer != null) {
+                BufferPool.CHUNKS.give(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Encodes characters as UTF-8 straight into a ByteSink, without the buffers
+     * of an OutputStreamWriter. Unpaired surrogates are written as '?', like
+     * String.getBytes does. Closing it leaves the sink open.
+     */
+    static class Utf8Writer extends Writer {
+        private final ByteSink out;
+        private char high = 0; // high surrogate waiting for its pair
+
+        Utf8Writer(ByteSink out) {
+            this.out = out;
+        }
+
+        public void write(int c) {
+            put((char) c);
+        }
+
+        public void write(char[] chars, int off, int len) {
+            out.ensure(len);
+            for (int i = off; i < off + len; i++) {
+                char c = chars[i];
+                if (c < 0x80 && high == 0 && out.count < out.buffer.length) {
+                    out.buffer[out.count++] = (byte) c;
+                } else {
+                    put(c);
+                }
+            }
+        }
+
+        public void write(String s, int off, int len) {
+            out.ensure(len);
+            for (int i = off; i < off + len; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80 && high == 0 && out.count < out.buffer.length) {
+                    out.buffer[out.count++] = (byte) c;
+                } else {
+                    put(c);
+                }
+            }
+        }
+
+        private void put(char c) {
+            out.ensure(4);
+            byte[] b = out.buffer;
+            if (high != 0) {
+                char h = high;
+                high = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int code = Character.toCodePoint(h, c);
+                    b[out.count++] = (byte) (0xf0 | code >> 18);
+                    b[out.count++] = (byte) (0x80 | code >> 12 & 0x3f);
+                    b[out.count++] = (byte) (0x80 | code >> 6 & 0x3f);
+                    b[out.count++] = (byte) (0x80 | code & 0x3f);
+                    return;
+                }
+                b[out.count++] = '?';
+                out.ensure(3);
+                b = out.buffer;
+            }
+            if (c < 0x80) {
+                b[out.count++] = (byte) c;
+            } else if (c < 0x800) {
+                b[out.count++] = (byte) (0xc0 | c >> 6);
+                b[out.count++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c)) {
+                high = c;
+            } else if (Character.isLowSurrogate(c)) {
+                b[out.count++] = '?';
+            } else {
+                b[out.count++] = (byte) (0xe0 | c >> 12);
+                b[out.count++] = (byte) (0x80 | c >> 6 & 0x3f);
+                b[out.count++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+            if (high != 0) {
+                high = 0;
+                out.write('?');
+            }
+        }
+    }
+
+    /**
+     * Decodes UTF-8 bytes from an array, without the buffers of an
+     * InputStreamReader. Malformed sequences are read as U+FFFD.
+     */
+    static class Utf8Reader extends Reader {
+        private final byte[] data;
+        private int pos = 0;
+        private char low = 0; // low surrogate that did not fit in the last read
+
+        Utf8Reader(byte[] data) {
+            this.data = data;
+        }
+
+        public int read(char[] chars, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            if (low != 0) {
+                chars[off + n++] = low;
+                low = 0;
+            }
+            while (n < len && pos < data.length) {
+                byte b = data[pos];
+                if (b >= 0) {
+                    chars[off + n++] = (char) b;
+                    pos++;
+                    continue;
+                }
+                int code = decode();
+                if (code < 0x10000) {
+                    chars[off + n++] = (char) code;
+                } else {
+                    chars[off + n++] = Character.highSurrogate(code);
+                    if (n < len) {
+                        chars[off + n++] = Character.lowSurrogate(code);
+                    } else {
+                        low = Character.lowSurrogate(code);
+                    }
+                }
+            }
+            return n == 0 ? -1 : n;
+        }
+
+        /** Decodes the multibyte sequence at pos and moves past it */
+        private int decode() {
+            int b = data[pos] & 0xff;
+            int length;
+            int code;
+            // the range of the second byte rules out overlong forms and code points
+            // beyond U+10FFFF, as in the JDK decoder
+            int low = 0x80;
+            int high = 0xbf;
+            if (b >= 0xc2 && b <= 0xdf) {
+                length = 2;
+                code = b & 0x1f;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                length = 3;
+                code = b & 0x0f;
+                low = b == 0xe0 ? 0xa0 : low;
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                length = 4;
+                code = b & 0x07;
+                low = b == 0xf0 ? 0x90 : low;
+                high = b == 0xf4 ? 0x8f : high;
+            } else {
+                pos++;
+                return 0xfffd;
+            }
+            for (int i = 1; i < length; i++) {
+                int next = pos + i < data.length ? data[pos + i] & 0xff : -1;
+                if (i == 1 ? next < low || next > high : (next & 0xc0) != 0x80) {
+                    pos += i;
+                    return 0xfffd;
+                }
+                code = code << 6 | next & 0x3f;
+            }
+            pos += length;
+            return code >= 0xd800 && code <= 0xdfff ? 0xfffd : code;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Reads the parts of a multipart body straight from the input stream, one
+     * part at a time, keeping only a fixed-size window of it in memory.
+     *
+     * The delimiter is searched with Boyer-Moore-Horspool, which skips up to the
+     * length of the delimiter at each step, and every byte of the body is scanned
+     * only once. Part contents are handed out as slices of the window.
+     *
+     * The window comes from BufferPool.WINDOWS and is given back on close, after
+     * which the reader and its parts can no longer be read.
+     */
+    static class MultipartReader implements Closeable {
+
+        private static final byte[] CRLF = { '\r', '\n' };
+        private static final byte[] HEADERS_END = { '\r', '\n', '\r', '\n' };
+
+        /** The delimiter of a boundary with its skip table */
+        private static class Delimiter {
+            final String boundary;
+            final byte[] bytes;
+            final int[] skip = new int[256];
+
+            Delimiter(String boundary) {
+                this.boundary = boundary;
+                this.bytes = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+                Arrays.fill(skip, bytes.length);
+                for (int i = 0; i < bytes.length - 1; i++) {
+                    skip[bytes[i] & 0xff] = bytes.length - 1 - i;
+                }
+            }
+        }
+
+        /** The last delimiter, reused while servers keep the same boundary */
+        private static volatile Delimiter last = null;
+
+        private final InputStream in;
+        private final byte[] delimiter;
+        private final int[] skip;
+        private byte[] buffer = BufferPool.WINDOWS.take();
+        private int pos = 0;
+        private int limit = 0;
+        private boolean eof = false;
+        private PartInputStream part = null;
+
+        public MultipartReader(InputStream in, String boundary) {
+            this.in = in;
+            Delimiter cached = last;
+            if (cached == null || !cached.boundary.equals(boundary)) {
+                cached = new Delimiter(boundary);
+                last = cached;
+            }
+            this.delimiter = cached.bytes;
+            this.skip = cached.skip;
+            // Pretend the body starts with a CRLF so that the first boundary is
+            // found like all the others and the preamble is skipped like a part.
+            buffer[limit++] = '\r';
+            buffer[limit++] = '\n';
+            part = new PartInputStream();
+        }
+
+        /**
+         * Moves to the next part and returns its headers, or null if there are no
+         * more parts. The content of the part is then available through part().
+         */
+        public String nextPart() throws IOException {
+            if (buffer == null) {
+                throw new IOException("Multipart reader closed");
+            }
+            // Skip whatever remains of the current part
+            if (part != null) {
+                part.skip(Long.MAX_VALUE);
+                part = null;
+            }
+
+            // Final boundary?
+            if (!ensure(2)) {
+                throw new IOException("Unexpected end of multipart response");
+            }
+            if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+                return null;
+            }
+
+            // Skip the rest of the boundary line
+            int lineEnd = find(CRLF);
+            pos = lineEnd + CRLF.length;
+
+            // Read the headers
+            String headers;
+            if (ensure(2) && buffer[pos] == '\r' && buffer[pos + 1] == '\n') {
+                headers = "";
+                pos += 2;
+            } else {
+                int headersEnd = find(HEADERS_END);
+                headers = new String(buffer, pos, headersEnd - pos, StandardCharsets.UTF_8);
+                pos = headersEnd + HEADERS_END.length;
+            }
+
+            part = new PartInputStream();
+            return headers;
+        }
+
+        /** Returns the content of the current part */
+        public PartInputStream part() {
+            return part;
+        }
+
+        /** Reads the rest of the input, after the final boundary */
+        public void finish() throws IOException {
+            while (!eof) {
+                pos = limit;
+                fill();
+            }
+            pos = limit;
+        }
+
+        /** Gives the window back to the pool; the input stream is left open */
+        public void close() {
+            if (buffer != null) {
+                BufferPool.WINDOWS.give(buffer);
+                buffer = null;
+            }
+        }
+
+        private boolean ensure(int n) throws IOException {
+            while (limit - pos < n && !eof) {
+                fill();
+            }
+            return limit - pos >= n;
+        }
+
+        private int find(byte[] pattern) throws IOException {
+            while (true) {
+                int index = indexOf(buffer, pos, limit, pattern);
+                if (index != -1) {
+                    return index;
+                }
+                if (eof) {
+                    throw new IOException("Unexpected end of multipart response");
+                }
+                if (pos == 0 && limit == buffer.length) {
+                    throw new IOException("Multipart headers too large");
+                }
+                fill();
+            }
+        }
+
+        private void fill() throws IOException {
+            if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n == -1) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+
+        /** Finds the delimiter in buffer[from, to) using the skip table */
+        private int indexOfDelimiter(int from, int to) {
+            int last = delimiter.length - 1;
+            for (int i = from; i <= to - delimiter.length; i += skip[buffer[i + last] & 0xff]) {
+                int j = last;
+                while (j >= 0 && buffer[i + j] == delimiter[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+            for (int i = from; i <= to - pattern.length; i++) {
+                boolean found = true;
+                for (int j = 0; j < pattern.length; j++) {
+                    if (data[i + j] != pattern[j]) {
+                        found = false;
+                        break;
+                    }
+                }
+                if (found) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * The content of a part: the bytes up to the next delimiter, which is
+         * consumed when the end of the part is reached.
+         */
+        class PartInputStream extends InputStream {
+
+            private boolean done = false;
+            private int found = -1; // position of the delimiter in the buffer, if known
+            private int safe = -1; // bytes before this position cannot be part of a delimiter
+
+            public int read() throws IOException {
+                int n = advance();
+                if (n == -1) {
+                    return -1;
+                }
+                return buffer[pos++] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n = advance();
+                if (n == -1) {
+                    return -1;
+                }
+                n = Math.min(len, n);
+                System.arraycopy(buffer, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            /** Writes the rest of the part directly from the window, without copies */
+            public long transferTo(OutputStream out) throws IOException {
+                long total = 0;
+                int n;
+                while ((n = advance()) != -1) {
+                    out.write(buffer, pos, n);
+                    pos += n;
+                    total += n;
+                }
+                return total;
+            }
+
+            /**
+             * Returns how many bytes of the part are available in the window from pos,
+             * filling it if needed, or -1 at the end of the part.
+             */
+            private int advance() throws IOException {
+                if (done) {
+                    return -1;
+                }
+                if (buffer == null) {
+                    throw new IOException("Multipart reader closed");
+                }
+                while (true) {
+                    if (safe < pos) {
+                        found = indexOfDelimiter(pos, limit);
+                        safe = found != -1 ? found : Math.max(pos, limit - delimiter.length + 1);
+                    }
+                    if (safe > pos) {
+                        return safe - pos;
+                    }
+                    if (found == pos) {
+                        pos += delimiter.length;
+                        done = true;
+                        return -1;
+                    }
+                    if (eof) {
+                        throw new IOException("Unexpected end of multipart response");
+                    }
+                    fill();
+                    safe = -1;
+                }
+            }
+
+            public long skip(long n) throws IOException {
+                long skipped = 0;
+                int r;
+                while (skipped < n && (r = advance()) != -1) {
+                    r = (int) Math.min(r, n - skipped);
+                    pos += r;
+                    skipped += r;
+                }
+                return skipped;
+            }
+        }
+    }
+
+    /**
+     * A client for executing multipart/form-data HTTP requests with binary file
+     * handling (package-private for the benchmarks)
+     */
+    static class MultipartClient {
+
+        // Most of this class written by claude.ai, under the direction of jpetit.
+
+        public Execution execute(Transport transport, String url, byte[] data, Upload[] ifiles, long spoolThreshold,
+                CallMetrics metrics) throws Exception {
+            TransportRequest request = encode(url, data, ifiles);
+            long start = System.nanoTime();
+            TransportResponse response = transport.send(request);
+            if (metrics != null) {
+                metrics.bytesSent = sent(request);
+                metrics.exchangeNanos = System.nanoTime() - start - metrics.queueNanos;
+            }
+            return decode(response, spoolThreshold, metrics);
+        }
+
+        public CompletableFuture<Execution> executeAsync(Transport transport, Executor executor, String url,
+                byte[] data, Upload[] ifiles, long spoolThreshold, CallMetrics metrics) {
+            TransportRequest request = encode(url, data, ifiles);
+            long start = System.nanoTime();
+            return transport.sendAsync(request, executor).thenApplyAsync(response -> {
+                try {
+                    if (metrics != null) {
+                        metrics.bytesSent = sent(request);
+                        metrics.exchangeNanos = System.nanoTime() - start - metrics.queueNanos;
+                    }
+                    return decode(response, spoolThreshold, metrics);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        }
+
+        /**
+         * Returns the length of a sent request, or -1 if it is unknown. It never
+         * throws, since the response holds a scheduler permit until it is decoded.
+         */
+        private static long sent(TransportRequest request) {
+            try {
+                return request.contentLength();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Sends a request without ifiles and returns its data part as a stream that
+         * has not been read yet. Closing the stream releases the response.
+         */
+        public InputStream executeStreaming(Transport transport, String url, byte[] data, CallMetrics metrics)
+                throws Exception {
+            TransportRequest request = encode(url, data, new Upload[0]);
+            long start = System.nanoTime();
+            TransportResponse response = transport.send(request);
+            InputStream decoded = null;
+            MultipartReader reader = null;
+            try {
+                InputStream body = response.body;
+                if (metrics != null) {
+                    metrics.bytesSent = sent(request);
+                    metrics.exchangeNanos = System.nanoTime() - start - metrics.queueNanos;
+                    metrics.status = response.statusCode;
+                    body = new MeteredInputStream(body, metrics);
+                }
+                if (response.statusCode != 200) {
+                    throw new Exception("HTTP error code: " + response.statusCode);
+                }
+                if (response.contentType == null || !response.contentType.startsWith("multipart/form-data")) {
+                    throw new Exception("Response is not multipart/form-data: " + response.contentType);
+                }
+                decoded = decompress(body, response.contentEncoding);
+                reader = new MultipartReader(decoded, extractBoundary(response.contentType));
+                if (reader.nextPart() == null) {
+                    throw new Exception("Could not find enough boundaries in response");
+                }
+                InputStream source = decoded;
+                MultipartReader window = reader;
+                return new FilterInputStream(reader.part()) {
+                    @Override
+                    public void close() throws IOException {
+                        // closes response.body too, and then releases the window
+                        try {
+                            source.close();
+                        } finally {
+                            window.close();
+                        }
+                    }
+                };
+            } catch (Exception e) {
+                // the decoder holds an Inflater and a pooled buffer, and closes response.body too
+                closeQuietly(decoded != null ? decoded : response.body);
+                if (reader != null) {
+                    reader.close();
+                }
+                throw e;
+            }
+        }
+
+        /** Writes the JSON of the data part straight into bytes */
+        public byte[] encodeData(String func, Input input, Meta meta) throws IOException {
+            try (ByteSink bytes = new ByteSink()) {
+                try (JsonWriter out = new JsonWriter(new Utf8Writer(bytes))) {
+                    out.beginObject();
+                    out.name("func").value(func);
+                    if (meta != null) {
+                        out.name("meta").beginObject();
+                        if (meta.token != null) {
+                            out.name("token").value(meta.token);
+                        }
+                        out.endObject();
+                    }
+                    out.name("input");
+                    if (input == null) {
+                        out.nullValue();
+                    } else {
+                        input.write(out);
+                    }
+                    out.endObject();
+                }
+                return bytes.toByteArray();
+            }
+        }
+
+        TransportRequest encode(String url, byte[] data, Upload[] ifiles) {
+            Map<String, String> headers = setupHeaders();
+
+            Upload[] body = new Upload[3 * ifiles.length + 4];
+            // Write the data part
+            int n = writeDataPart(body, 0, data);
+
+            // Write all input file parts
+            for (int i = 0; i < ifiles.length; i++) {
+                n = writeFilePart(body, n, i, ifiles[i]);
+            }
+
+            // Write the final boundary
+            body[n] = FINAL_BOUNDARY;
+
+            return new TransportRequest(url, headers, body);
+        }
+
+        private Execution decode(TransportResponse response, long spoolThreshold, CallMetrics metrics)
+                throws Exception {
+            try (InputStream inputStream = response.body) {
+                if (metrics != null) {
+                    metrics.status = response.statusCode;
+                }
+
+                // Check response code
+                if (response.statusCode != 200) {
+                    throw new Exception("HTTP error code: " + response.statusCode);
+                }
+
+                // Parse the multipart response
+                long start = System.nanoTime();
+                InputStream body = metrics == null ? inputStream : new MeteredInputStream(inputStream, metrics);
+                Execution execution;
+                try (InputStream decoded = decompress(body, response.contentEncoding)) {
+                    execution = parseMultipartResponse(response.contentType, decoded, spoolThreshold);
+                }
+                if (metrics != null) {
+                    metrics.parseNanos = System.nanoTime() - start - metrics.downloadNanos;
+                }
+                return execution;
+            }
+        }
+
+        /**
+         * Decodes a response body as it is read, according to its Content-Encoding.
+         * The buffers of the decoders are taken from BufferPool.WINDOWS and given
+         * back on close.
+         */
+        private static InputStream decompress(InputStream body, String contentEncoding) throws IOException {
+            if (contentEncoding == null) {
+                return body;
+            }
+            switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+                case "gzip":
+                case "x-gzip":
+                    // the header is read by the constructor, before the buffer is used
+                    return new java.util.zip.GZIPInputStream(body, 1) {
+                        {
+                            buf = BufferPool.WINDOWS.take();
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                if (buf != null) {
+                                    BufferPool.WINDOWS.give(buf);
+                                    buf = null;
+                                }
+                            }
+                        }
+                    };
+                case "deflate":
+                    java.util.zip.Inflater inflater = new java.util.zip.Inflater();
+                    return new java.util.zip.InflaterInputStream(body, inflater, 1) {
+                        {
+                            buf = BufferPool.WINDOWS.take();
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                inflater.end();
+                                if (buf != null) {
+                                    BufferPool.WINDOWS.give(buf);
+                                    buf = null;
+                                }
+                            }
+                        }
+                    };
+                case "":
+                case "identity":
+                    return body;
+                default:
+                    throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+            }
+        }
+
+        /**
+         * Boundary of the requests. It is random for each process rather than for
+         * each request, which makes it no more likely to appear in the parts and
+         * lets the bytes around them be built once.
+         */
+        private static final String BOUNDARY = UUID.randomUUID().toString();
+
+        private static final String CONTENT_TYPE = "multipart/form-data; boundary=" + BOUNDARY;
+
+        private static final Upload DATA_HEADER = segment("--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"data\"\r\n\r\n");
+
+        private static final Upload[] FILE_HEADERS = new Upload[16];
+
+        private static final Upload CRLF = segment("\r\n");
+
+        private static final Upload FINAL_BOUNDARY = segment("--" + BOUNDARY + "--\r\n");
+
+        static {
+            for (int i = 0; i < FILE_HEADERS.length; i++) {
+                FILE_HEADERS[i] = fileHeader(i);
+            }
+        }
+
+        private static Upload segment(String text) {
+            return Upload.of(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static Upload fileHeader(int i) {
+            String name = "file_" + i;
+            return segment("--" + BOUNDARY + "\r\n" +
+                    "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + name + "\"\r\n" +
+                    "Content-Type: application/octet-stream\r\n\r\n");
+        }
+
+        /** Host the API is asked to serve through proxies, read once from JUTGE_DOMAIN */
+        private static final String JUTGE_DOMAIN = System.getenv("JUTGE_DOMAIN");
+
+        private Map<String, String> setupHeaders() {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Content-Type", CONTENT_TYPE);
+            headers.put("Accept-Encoding", "gzip, deflate");
+            if (JUTGE_DOMAIN != null && !JUTGE_DOMAIN.isEmpty()) {
+                headers.put("x-forwarded-host", JUTGE_DOMAIN);
+            }
+            return headers;
+        }
+
+        /** Puts the segments of the data part at body[n] and returns the next position */
+        private int writeDataPart(Upload[] body, int n, byte[] value) {
+            body[n++] = DATA_HEADER;
+            body[n++] = Upload.of(value);
+            body[n++] = CRLF;
+            return n;
+        }
+
+        /** Puts the segments of the i-th file part at body[n] and returns the next position */
+        private int writeFilePart(Upload[] body, int n, int i, Upload file) {
+            body[n++] = i < FILE_HEADERS.length ? FILE_HEADERS[i] : fileHeader(i);
+            body[n++] = file;
+            body[n++] = CRLF;
+            return n;
+        }
+
+        private Execution parseMultipartResponse(String contentType, InputStream inputStream, long spoolThreshold)
+                throws Exception {
+            if (contentType == null || !contentType.startsWith("multipart/form-data")) {
+                throw new Exception("Response is not multipart/form-data: " + contentType);
+            }
+
+            // Extract boundary from content type
+            String boundary = extractBoundary(contentType);
+
+            Execution result = new Execution();
+            ArrayList<Download> downloads = new ArrayList<>();
+            boolean hasData = false;
+
+            try (MultipartReader reader = new MultipartReader(inputStream, boundary)) {
+                // Process each part as it arrives
+                String headers;
+                for (int i = 0; (headers = reader.nextPart()) != null; i++) {
+                    if (i == 0) {
+                        // First part is the output string, decoded later by the endpoint
+                        try (ByteSink data = new ByteSink()) {
+                            reader.part().transferTo(data);
+                            result.data = data.toByteArray();
+                        }
+                        hasData = true;
+                    } else {
+                        // Subsequent parts are binary files
+                        Download download = new Download();
+                        spool(reader.part(), download, spoolThreshold);
+
+                        // Extract name and type from headers
+                        String contentDisposition = extractHeader(headers, "Content-Disposition");
+                        String contentTypeHeader = extractHeader(headers, "Content-Type");
+
+                        if (contentDisposition != null) {
+                            String filename = extractFilenameFromContentDisposition(contentDisposition);
+                            download.name = filename != null ? filename : "file_" + (i - 1);
+                        } else {
+                            download.name = "file_" + (i - 1);
+                        }
+
+                        download.type = contentTypeHeader != null ? contentTypeHeader : "application/octet-stream";
+
+                        downloads.add(download);
+                    }
+                }
+
+                if (!hasData) {
+                    throw new Exception("Could not find enough boundaries in response");
+                }
+
+                // Consume the epilogue so that the connection can be reused
+                reader.finish();
+            } catch (Exception e) {
+                for (Download download : downloads) {
+                    download.close();
+                }
+                throw e;
+            }
+
+            result.ofiles = downloads.toArray(new Download[0]);
+            return result;
+        }
+
+        /**
+         * Copies a part into memory, switching to a temporary file once it grows
+         * beyond the threshold.
+         */
+        private void spool(MultipartReader.PartInputStream part, Download download, long spoolThreshold)
+                throws IOException {
+            SpoolOutputStream out = new SpoolOutputStream(spoolThreshold);
+            try (out) {
+                part.transferTo(out);
+                download.data = out.memory != null ? out.memory.toByteArray() : null;
+            } catch (IOException e) {
+                if (out.path != null) {
+                    Files.deleteIfExists(out.path);
+                }
+                throw e;
+            }
+            if (out.path != null) {
+                download.spooled(out.path);
+            }
+        }
+
+        private static class SpoolOutputStream extends OutputStream {
+            private final long threshold;
+            private ByteSink memory = new ByteSink();
+            private OutputStream file = null;
+            private Path path = null;
+
+            public SpoolOutputStream(long threshold) {
+                this.threshold = threshold;
+            }
+
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (file == null && memory.size() + len > threshold) {
+                    path = Files.createTempFile("jutge-", ".download");
+                    file = Files.newOutputStream(path);
+                    memory.writeTo(file);
+                    memory.close();
+                    memory = null;
+                }
+                if (file != null) {
+                    file.write(b, off, len);
+                } else {
+                    memory.write(b, off, len);
+                }
+            }
+
+            public void close() throws IOException {
+                if (memory != null) {
+                    memory.close();
+                }
+                if (file != null) {
+                    file.close();
+                }
+            }
+        }
+
+        private String extractHeader(String headers, String headerName) {
+            for (String line : headers.split("\r\n")) {
+                if (line.startsWith(headerName + ":")) {
+                    return line.substring(headerName.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        private String extractFilenameFromContentDisposition(String contentDisposition) {
+            String[] parts = contentDisposition.split(";");
+            for (String part : parts) {
+                part = part.trim();
+                if (part.startsWith("filename=")) {
+                    String filename = part.substring("filename=".length());
+                    // Remove quotes if present
+                    if (filename.startsWith("\"") && filename.endsWith("\"")) {
+                        filename = filename.substring(1, filename.length() - 1);
+                    }
+                    return filename;
+                }
+            }
+            return null;
+        }
+
+        private String extractBoundary(String contentType) {
+            String[] parts = contentType.split(";");
+            for (String part : parts) {
+                part = part.trim();
+                if (part.startsWith("boundary=")) {
+                    String boundary = part.substring("boundary=".length()).trim();
+                    // Remove quotes if present
+                    if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                        boundary = boundary.substring(1, boundary.length() - 1);
+                    }
+                    return boundary;
+                }
+            }
+            throw new IllegalArgumentException("Boundary not found in Content-Type: " + contentType);
+        }
+    }
+
+    /**
+     * A thread-safe, size-bounded cache of executions with LRU eviction
+     */
+    public static class ResponseCache {
+
+        private static class Entry {
+            public final Execution execution;
+            public final long expiration;
+
+            public Entry(Execution execution, long expiration) {
+                this.execution = execution;
+                this.expiration = expiration;
+            }
+        }
+
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private int capacity;
+
+        public ResponseCache(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private synchronized Execution get(String key) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiration < System.currentTimeMillis()) {
+                entries.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.execution;
+        }
+
+        private synchronized void put(String key, Execution execution, int ttl) {
+            put(key, new Entry(execution, System.currentTimeMillis() + ttl * 1000L));
+        }
+
+        private synchronized void put(String key, Entry entry) {
+            entries.put(key, entry);
+            evict();
+        }
+
+        private void evict() {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (entries.size() > capacity && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        /** Set the maximum number of entries in the cache */
+        public synchronized void setCapacity(int capacity) {
+            this.capacity = capacity;
+            evict();
+        }
+
+        /** Clear the contents of the cache */
+        public synchronized void clear() {
+            entries.clear();
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        public long hits() {
+            return hits.get();
+        }
+
+        public long misses() {
+            return misses.get();
+        }
+    }
+
+    /**
+     * A persistent cache of executions in a directory, shared by the processes
+     * that use it, so that reference data survives restarts.
+     *
+     * Each API version has its own subdirectory, so processes of different
+     * versions never discard each other's entries. Its index is an append-only
+     * log of entries, keyed by the SHA-256 of the cache key. Data parts and
+     * downloads are stored as content-addressed blobs under blobs/, written once
+     * and shared by all the entries with the same content. Entries expire with
+     * the TTL of their endpoint. Large downloads are served straight from their
+     * blob.
+     *
+     * Blobs that no entry uses are deleted when the index is compacted or
+     * cleared, once they have not been written or handed out for a minute, so
+     * that other processes can still read the ones they just got.
+     */
+    public static class DiskCache {
+
+        private static final int MAGIC = 0x4a414331; // JAC1
+
+        /** Time that unused blobs are kept, in milliseconds */
+        private static final long GRACE = 60_000;
+
+        private static class Blob {
+            public final String name;
+            public final String type;
+            public final byte[] digest;
+            public final long size;
+
+            public Blob(String name, String type, byte[] digest, long size) {
+                this.name = name;
+                this.type = type;
+                this.digest = digest;
+                this.size = size;
+            }
+        }
+
+        private static class Entry {
+            public final long expiration;
+            public final Blob data;
+            public final Blob[] ofiles;
+
+            public Entry(long expiration, Blob data, Blob[] ofiles) {
+                this.expiration = expiration;
+                this.data = data;
+                this.ofiles = ofiles;
+            }
+        }
+
+        private final Path directory;
+        private final Path index;
+        private final Path blobs;
+        private final String version;
+        private final Map<String, Entry> entries = new HashMap<>();
+        private FileChannel channel;
+        private Object fileKey;
+        private long position;
+        private int records;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        /**
+         * Opens (or creates) the cache in directory for the given API version,
+         * usually JutgeApiClient.API_VERSION.
+         */
+        public DiskCache(Path directory, String version) throws IOException {
+            directory = directory.resolve(version.replaceAll("[^A-Za-z0-9._-]", "_"));
+            this.directory = directory;
+            this.index = directory.resolve("index");
+            this.blobs = directory.resolve("blobs");
+            this.version = version;
+            Files.createDirectories(blobs);
+            open();
+        }
+
+        private synchronized void open() throws IOException {
+            boolean compacting;
+            if (channel != null) {
+                channel.close();
+            }
+            entries.clear();
+            records = 0;
+            channel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            java.nio.channels.FileLock lock = channel.lock();
+            try {
+                fileKey = Files.readAttributes(index, java.nio.file.attribute.BasicFileAttributes.class).fileKey();
+                if (!readHeader()) {
+                    // new or damaged file: start over, the unused blobs go with the next compaction
+                    channel.truncate(0);
+                    writeHeader(channel);
+                }
+                readRecords();
+                dropTornTail();
+                compacting = records > 1024 && records > 4 * entries.size();
+                if (compacting) {
+                    compact();
+                }
+            } finally {
+                lock.release();
+            }
+            if (compacting) {
+                open();
+            }
+        }
+
+        private boolean readHeader() throws IOException {
+            if (channel.size() == 0) {
+                return false;
+            }
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(java.nio.channels.Channels.newInputStream(channel.position(0))));
+            try {
+                if (in.readInt() != MAGIC || !in.readUTF().equals(version)) {
+                    return false;
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                return false;
+            }
+            position = 4 + 2 + version.getBytes(StandardCharsets.UTF_8).length;
+            return true;
+        }
+
+        private void writeHeader(FileChannel channel) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeUTF(version);
+            channel.write(java.nio.ByteBuffer.wrap(bytes.toByteArray()), 0);
+            position = bytes.size();
+        }
+
+        /**
+         * Reads the records appended since the last read, stopping at a torn tail:
+         * a record that a killed process did not finish, or any unreadable bytes.
+         */
+        private void readRecords() throws IOException {
+            long size = channel.size();
+            if (size <= position) {
+                return;
+            }
+            java.nio.MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size - position);
+            // read the mapped index without copying it first
+            DataInputStream in = new DataInputStream(new InputStream() {
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                public int read(byte[] b, int off, int len) {
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    len = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, len);
+                    return len;
+                }
+            });
+            long now = System.currentTimeMillis();
+            while (true) {
+                int start = buffer.position();
+                try {
+                    String key = hex(readDigest(in));
+                    long expiration = in.readLong();
+                    Blob data = readBlob(in);
+                    Blob[] ofiles = new Blob[in.readUnsignedShort()];
+                    for (int i = 0; i < ofiles.length; i++) {
+                        ofiles[i] = readBlob(in);
+                    }
+                    records++;
+                    if (expiration > now) {
+                        entries.put(key, new Entry(expiration, data, ofiles));
+                    } else {
+                        entries.remove(key);
+                    }
+                } catch (IOException e) {
+                    position += start;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Removes the bytes after the last record that could be read, so that new
+         * records are not appended after them. Needs the exclusive lock.
+         */
+        private void dropTornTail() throws IOException {
+            if (channel.size() > position) {
+                channel.truncate(position);
+            }
+        }
+
+        private static byte[] readDigest(DataInputStream in) throws IOException {
+            byte[] digest = new byte[32];
+            in.readFully(digest);
+            return digest;
+        }
+
+        private static Blob readBlob(DataInputStream in) throws IOException {
+            String name = in.readUTF();
+            String type = in.readUTF();
+            byte[] digest = readDigest(in);
+            return new Blob(name, type, digest, in.readLong());
+        }
+
+        private static void writeBlob(DataOutputStream out, Blob blob) throws IOException {
+            out.writeUTF(blob.name);
+            out.writeUTF(blob.type);
+            out.write(blob.digest);
+            out.writeLong(blob.size);
+        }
+
+        /** Picks up the records appended by other processes, or reopens a replaced index */
+        private void refresh() throws IOException {
+            Object key = Files.readAttributes(index, java.nio.file.attribute.BasicFileAttributes.class).fileKey();
+            if (key != null && !key.equals(fileKey)) {
+                open();
+            } else if (channel.size() > position) {
+                java.nio.channels.FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+                try {
+                    readRecords();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+
+        /**
+         * Rewrites the index with the live entries and deletes the blobs nobody
+         * uses. Other processes notice the new index file and reload it.
+         */
+        private void compact() throws IOException {
+            Path temporary = directory.resolve("index.tmp");
+            Set<String> live = new HashSet<>();
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeHeader(out);
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    append(out, entry.getKey(), entry.getValue());
+                    live.add(hex(entry.getValue().data.digest));
+                    for (Blob blob : entry.getValue().ofiles) {
+                        live.add(hex(blob.digest));
+                    }
+                }
+            }
+            Files.move(temporary, index, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            // blobs of entries being added by other processes, or just read by them, are recent
+            deleteBlobs(live, System.currentTimeMillis() - GRACE);
+        }
+
+        private void deleteBlobs(Set<String> live, long before) throws IOException {
+            try (java.util.stream.Stream<Path> files = Files.walk(blobs)) {
+                for (Path path : (Iterable<Path>) files::iterator) {
+                    String name = path.getParent().getFileName() + "" + path.getFileName();
+                    if (Files.isRegularFile(path) && !live.contains(name)
+                            && Files.getLastModifiedTime(path).toMillis() < before) {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+        }
+
+        private static void append(FileChannel channel, String key, Entry entry) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(unhex(key));
+            out.writeLong(entry.expiration);
+            writeBlob(out, entry.data);
+            out.writeShort(entry.ofiles.length);
+            for (Blob blob : entry.ofiles) {
+                writeBlob(out, blob);
+            }
+            java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(bytes.toByteArray());
+            long at = channel.size();
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+        }
+
+        /** Looks up an entry; only the index is read under the lock, the blobs are read after */
+        private ResponseCache.Entry get(String key, long spoolThreshold) {
+            String digest = hex(sha256(key.getBytes(StandardCharsets.UTF_8)));
+            try {
+                Entry entry;
+                synchronized (this) {
+                    entry = entries.get(digest);
+                    if (entry == null) {
+                        refresh();
+                        entry = entries.get(digest);
+                    }
+                }
+                if (entry == null || entry.expiration < System.currentTimeMillis()) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+                Execution execution = new Execution();
+                execution.data = read(entry.data);
+                execution.ofiles = new Download[entry.ofiles.length];
+                for (int i = 0; i < entry.ofiles.length; i++) {
+                    Blob blob = entry.ofiles[i];
+                    Download download = new Download();
+                    download.name = blob.name;
+                    download.type = blob.type;
+                    if (blob.size > spoolThreshold) {
+                        // served from the blob, which must outlive the download
+                        download.path = path(blob.digest);
+                        download.shared = true;
+                        touch(download.path);
+                    } else {
+                        download.data = read(blob);
+                    }
+                    execution.ofiles[i] = download;
+                }
+                hits.incrementAndGet();
+                return new ResponseCache.Entry(execution, entry.expiration);
+            } catch (IOException e) {
+                // a missing blob or an unreadable index is a miss
+                errors.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        /** Adds an entry; the blobs are written before taking the lock to append it to the index */
+        private void put(String key, Execution execution, int ttl) {
+            try {
+                Blob data = store("data", "application/json", new ByteArrayInputStream(execution.data));
+                Blob[] ofiles = new Blob[execution.ofiles.length];
+                for (int i = 0; i < ofiles.length; i++) {
+                    Download download = execution.ofiles[i];
+                    try (InputStream in = download.inputStream()) {
+                        ofiles[i] = store(download.name, download.type, in);
+                    }
+                }
+                Entry entry = new Entry(System.currentTimeMillis() + ttl * 1000L, data, ofiles);
+                String digest = hex(sha256(key.getBytes(StandardCharsets.UTF_8)));
+                synchronized (this) {
+                    refresh();
+                    java.nio.channels.FileLock lock = channel.lock();
+                    try {
+                        readRecords();
+                        dropTornTail();
+                        append(channel, digest, entry);
+                        position = channel.size();
+                    } finally {
+                        lock.release();
+                    }
+                    entries.put(digest, entry);
+                    records++;
+                }
+            } catch (IOException e) {
+                // the cache is best effort: the call has its result anyway
+                errors.incrementAndGet();
+            }
+        }
+
+        private byte[] read(Blob blob) throws IOException {
+            byte[] bytes = Files.readAllBytes(path(blob.digest));
+            if (bytes.length != blob.size) {
+                throw new IOException("Corrupt blob " + hex(blob.digest));
+            }
+            return bytes;
+        }
+
+        /** Marks a blob as recently used, so that compactions keep it for a while */
+        private static void touch(Path path) throws IOException {
+            Files.setLastModifiedTime(path, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
+        }
+
+        /** Writes a content-addressed blob, unless it is already there */
+        private Blob store(String name, String type, InputStream in) throws IOException {
+            java.security.MessageDigest sha = sha256();
+            Path temporary = Files.createTempFile(blobs, "blob", ".tmp");
+            long size;
+            try {
+                try (OutputStream out = new java.security.DigestOutputStream(Files.newOutputStream(temporary), sha)) {
+                    size = in.transferTo(out);
+                }
+                byte[] digest = sha.digest();
+                Path path = path(digest);
+                if (Files.exists(path)) {
+                    // used by one more entry, which a compaction may not know yet
+                    touch(path);
+                } else {
+                    Files.createDirectories(path.getParent());
+                    try {
+                        Files.move(temporary, path, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+                    } catch (java.nio.file.FileAlreadyExistsException e) {
+                        // written at the same time by another thread or process
+                    }
+                }
+                return new Blob(name == null ? "" : name, type == null ? "" : type, digest, size);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private Path path(byte[] digest) {
+            String name = hex(digest);
+            return blobs.resolve(name.substring(0, 2)).resolve(name.substring(2));
+        }
+
+        private static java.security.MessageDigest sha256() {
+            try {
+                return java.security.MessageDigest.getInstance("SHA-256");
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static byte[] sha256(byte[] bytes) {
+            return sha256().digest(bytes);
+        }
+
+        private static String hex(byte[] bytes) {
+            StringBuilder s = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                s.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+            }
+            return s.toString();
+        }
+
+        private static byte[] unhex(String s) {
+            byte[] bytes = new byte[s.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+            }
+            return bytes;
+        }
+
+        /**
+         * Removes all the entries, for this process and the others, which notice the
+         * new index. Their blobs are deleted once unused for a while.
+         */
+        public synchronized void clear() throws IOException {
+            java.nio.channels.FileLock lock = channel.lock();
+            try {
+                entries.clear();
+                compact();
+            } finally {
+                lock.release();
+            }
+            open();
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        public long hits() {
+            return hits.get();
+        }
+
+        public long misses() {
+            return misses.get();
+        }
+
+        /** Number of entries that could not be read or written */
+        public long errors() {
+            return errors.get();
+        }
+    }
+
+    /**
+     * Result of one call of a batch, available after Batch.run().
+     */
+    public static class Call<T> {
+        private final Callable<T> callable;
+        private T result;
+        private Throwable error;
+        private long nanos;
+
+        private Call(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        private void run() {
+            long start = System.nanoTime();
+            try {
+                result = callable.call();
+            } catch (Throwable e) {
+                // errors too (e.g. a StackOverflowError in a callable), so that they are not lost in the executor
+                error = e;
+            }
+            nanos = System.nanoTime() - start;
+        }
+
+        public boolean ok() {
+            return error == null;
+        }
+
+        /** The result of the call, or its exception or error if it failed */
+        public T get() throws Exception {
+            if (error instanceof java.lang.Error) {
+                throw (java.lang.Error) error;
+            }
+            if (error != null) {
+                throw (Exception) error;
+            }
+            return result;
+        }
+
+        public Throwable error() {
+            return error;
+        }
+
+        public Duration latency() {
+            return Duration.ofNanos(nanos);
+        }
+    }
+
+    /**
+     * Runs many calls to the endpoints in parallel, with at most concurrency calls
+     * in flight. Errors are collected per call and do not stop the other calls.
+     *
+     * Example:
+     *
+     * <pre>
+     * var batch = jutge.batch().concurrency(32);
+     * for (String id : ids) batch.add(() -> jutge.problems.getProblem(id));
+     * for (var call : batch.run().calls()) ...
+     * </pre>
+     */
+    public class Batch {
+        private final ArrayList<Call<?>> calls = new ArrayList<>();
+        private int concurrency = 16;
+        private Executor executor = JutgeApiClient.this.executor;
+        private long nanos;
+
+        private Batch() {
+        }
+
+        /** Maximum number of calls in flight */
+        public Batch concurrency(int concurrency) {
+            if (concurrency < 1) {
+                throw new IllegalArgumentException("concurrency must be positive");
+            }
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /** Executor that runs the calls, the client executor by default */
+        public Batch executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /** Adds a call to the batch, usually a lambda calling a module method */
+        public <T> Call<T> add(Callable<T> callable) {
+            Call<T> call = new Call<>(callable);
+            calls.add(call);
+            return call;
+        }
+
+        /** Runs all the calls and waits for them to finish */
+        public Batch run() throws InterruptedException {
+            long start = System.nanoTime();
+            Semaphore permits = new Semaphore(concurrency);
+            CountDownLatch done = new CountDownLatch(calls.size());
+            for (Call<?> call : calls) {
+                permits.acquire();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            call.run();
+                        } finally {
+                            permits.release();
+                            done.countDown();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // the executor rejected the call
+                    call.error = e;
+                    permits.release();
+                    done.countDown();
+                }
+            }
+            done.await();
+            nanos = System.nanoTime() - start;
+            return this;
+        }
+
+        /** The calls, in the order they were added */
+        public java.util.List<Call<?>> calls() {
+            return Collections.unmodifiableList(calls);
+        }
+
+        public int failures() {
+            int failures = 0;
+            for (Call<?> call : calls) {
+                if (!call.ok()) {
+                    failures++;
+                }
+            }
+            return failures;
+        }
+
+        /** Wall time of the last run */
+        public Duration latency() {
+            return Duration.ofNanos(nanos);
+        }
+    }
+
+    /** Creates a new batch of calls for this client */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /** Creates a watch that polls a call of this client, see Watch */
+    public <T> Watch<T> watch(Callable<T> callable) {
+        return new Watch<>(callable);
+    }
+
+    /** The poll of a watch that runs on this thread, if any */
+    private static final ThreadLocal<Polling> WATCHING = new ThreadLocal<>();
+
+    /**
+     * The outputs of the calls of a poll in progress, in the order they were
+     * made, and those of the previous poll they are compared with.
+     */
+    private static class Polling {
+        final ArrayList<Snapshot> previous;
+        final ArrayList<Snapshot> fresh = new ArrayList<>();
+        long reused = 0;
+
+        Polling(ArrayList<Snapshot> previous) {
+            this.previous = previous;
+        }
+
+        /** Decodes the output of a call of the poll, unless it has not changed */
+        void observe(Execution execution, TypeAdapter<?> adapter) {
+            int index = fresh.size();
+            Snapshot last = index < previous.size() ? previous.get(index) : null;
+            int[] output = Snapshot.member(execution.data, "output");
+            if (output != null && last != null && last.adapter == adapter
+                    && Arrays.equals(last.data, last.from, last.to, execution.data, output[0], output[1])) {
+                execution.reuse(adapter, last.decoded);
+                reused++;
+                fresh.add(last);
+                return;
+            }
+            Object decoded = execution.output(adapter);
+            fresh.add(output == null ? new Snapshot(adapter, execution.data, 0, 0, decoded)
+                    : new Snapshot(adapter, execution.data, output[0], output[1], decoded));
+        }
+    }
+
+    /**
+     * A change in an entry of an output that is a map: before is null if the
+     * entry was added and after is null if it was removed.
+     */
+    public static class Change {
+        public final String key;
+        public final Object before;
+        public final Object after;
+
+        private Change(String key, Object before, Object after) {
+            this.key = key;
+            this.before = before;
+            this.after = after;
+        }
+
+        public String toString() {
+            return key + ": " + (before == null ? "added" : after == null ? "removed" : "changed");
+        }
+    }
+
+    /**
+     * Polls a call and reports when its output changes, usually a lambda calling
+     * a module method such as student.statuses.getAll() or tables.get(). Polls
+     * bypass the cache of the client.
+     *
+     * The bytes of the output in each response are compared with those of the
+     * previous poll, before decoding it: when they are equal, the call returns the
+     * object decoded before, so that unchanged polls decode nothing and allocate
+     * little. Outputs that are maps also report which entries were added, changed
+     * or removed, comparing the bytes of each entry. Only the synchronous module
+     * methods called on the thread of the poll are observed; the outputs of other
+     * calls are compared with equals.
+     *
+     * The interval between polls adapts to how often the output changes: it halves
+     * after a change, down to the minimum, and grows by half after a poll without
+     * changes or with an error, up to the maximum.
+     *
+     * Example:
+     *
+     * <pre>
+     * var watch = jutge.watch(() -> jutge.student.statuses.getAll())
+     *         .onEntry(change -> System.out.println(change))
+     *         .start();
+     * ...
+     * watch.close();
+     * </pre>
+     */
+    public class Watch<T> implements AutoCloseable {
+        private final Callable<T> callable;
+        private Duration minInterval = Duration.ofSeconds(2);
+        private Duration maxInterval = Duration.ofMinutes(1);
+        private volatile long interval = minInterval.toNanos();
+        private Consumer<? super T> onChange = null;
+        private Consumer<Change> onEntry = null;
+        private Consumer<? super Exception> onError = null;
+        private volatile boolean started = false;
+        private volatile boolean closed = false;
+
+        // the outputs of the calls of the last poll, in the order they were made
+        private ArrayList<Snapshot> snapshots = new ArrayList<>();
+        private T value;
+        private long polls = 0;
+        private long changes = 0;
+        private long reused = 0;
+
+        private Watch(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        /** Shortest and longest time between polls */
+        public synchronized Watch<T> interval(Duration min, Duration max) {
+            if (min.isNegative() || min.isZero() || max.compareTo(min) < 0) {
+                throw new IllegalArgumentException("The intervals must be positive and min cannot exceed max");
+            }
+            minInterval = min;
+            maxInterval = max;
+            interval = min.toNanos();
+            return this;
+        }
+
+        /** Called with the output of the first poll and whenever it changes */
+        public synchronized Watch<T> onChange(Consumer<? super T> listener) {
+            onChange = listener;
+            return this;
+        }
+
+        /** Called for each entry added, changed or removed if the output is a map */
+        public synchronized Watch<T> onEntry(Consumer<Change> listener) {
+            onEntry = listener;
+            return this;
+        }
+
+        /** Called with the exceptions of the polls in the background */
+        public synchronized Watch<T> onError(Consumer<? super Exception> listener) {
+            onError = listener;
+            return this;
+        }
+
+        /** Polls in the background on the executor of the client until it is closed */
+        public Watch<T> start() {
+            if (!started) {
+                started = true;
+                schedule(0);
+            }
+            return this;
+        }
+
+        /**
+         * Makes a call now and returns its output, calling the listeners on this
+         * thread if it has changed. The watch is not locked during the call nor
+         * while the listeners run.
+         */
+        public T poll() throws Exception {
+            Polling polling;
+            T before;
+            boolean first;
+            synchronized (this) {
+                polling = new Polling(snapshots);
+                before = this.value;
+                first = polls == 0;
+            }
+            Polling outer = WATCHING.get();
+            WATCHING.set(polling);
+            T value;
+            try {
+                value = callable.call();
+            } finally {
+                if (outer == null) {
+                    WATCHING.remove();
+                } else {
+                    WATCHING.set(outer);
+                }
+            }
+            ArrayList<Snapshot> last = polling.previous;
+            ArrayList<Snapshot> fresh = polling.fresh;
+            boolean changed;
+            if (fresh.isEmpty()) {
+                changed = first || !Objects.equals(value, before);
+            } else {
+                changed = fresh.size() != last.size();
+                for (int i = 0; i < fresh.size() && !changed; i++) {
+                    changed = fresh.get(i) != last.get(i);
+                }
+            }
+            Consumer<Change> entryListener;
+            Consumer<? super T> changeListener;
+            synchronized (this) {
+                snapshots = fresh;
+                this.value = value;
+                polls++;
+                reused += polling.reused;
+                if (!changed) {
+                    interval = longer(interval);
+                    return value;
+                }
+                changes++;
+                interval = Math.max(interval / 2, minInterval.toNanos());
+                entryListener = onEntry;
+                changeListener = onChange;
+            }
+            if (entryListener != null) {
+                for (int i = 0; i < fresh.size(); i++) {
+                    Snapshot after = fresh.get(i);
+                    Snapshot previous = i < last.size() ? last.get(i) : null;
+                    if (after != previous) {
+                        diff(previous, after, entryListener);
+                    }
+                }
+            }
+            if (changeListener != null) {
+                changeListener.accept(value);
+            }
+            return value;
+        }
+
+        /** Grows an interval by half, by at least a nanosecond, up to the maximum */
+        private long longer(long interval) {
+            return Math.min(Math.max(interval + 1, interval * 3 / 2), maxInterval.toNanos());
+        }
+
+        /** Stops the polls in the background */
+        public void close() {
+            closed = true;
+        }
+
+        /** The output of the last poll, null before the first one */
+        public synchronized T value() {
+            return value;
+        }
+
+        /** Time until the next poll in the background */
+        public Duration interval() {
+            return Duration.ofNanos(interval);
+        }
+
+        /** Number of polls that have completed */
+        public synchronized long polls() {
+            return polls;
+        }
+
+        /** Number of polls whose output changed, the first one included */
+        public synchronized long changes() {
+            return changes;
+        }
+
+        /** Number of outputs that were not decoded because they had not changed */
+        public synchronized long reused() {
+            return reused;
+        }
+
+        private void schedule(long nanos) {
+            CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS, executor).execute(() -> {
+                if (closed) {
+                    return;
+                }
+                try {
+                    poll();
+                } catch (Exception e) {
+                    Consumer<? super Exception> listener;
+                    synchronized (this) {
+                        interval = longer(interval);
+                        listener = onError;
+                    }
+                    if (listener != null) {
+                        listener.accept(e);
+                    }
+                }
+                if (!closed) {
+                    schedule(interval);
+                }
+            });
+        }
+    }
+
+    /** Reports the entries that differ between two outputs that are maps */
+    private static void diff(Snapshot before, Snapshot after, Consumer<Change> listener) {
+        if (!(after.decoded instanceof Map) || before != null && !(before.decoded instanceof Map)) {
+            return;
+        }
+        Map<String, int[]> old = before == null ? Map.of() : before.entries();
+        Map<String, int[]> now = after.entries();
+        if (old == null || now == null) {
+            return;
+        }
+        Map<String, Object> oldValues = before == null ? Map.of() : Snapshot.byKey((Map<?, ?>) before.decoded);
+        Map<String, Object> newValues = Snapshot.byKey((Map<?, ?>) after.decoded);
+        for (Map.Entry<String, int[]> entry : now.entrySet()) {
+            int[] range = entry.getValue();
+            int[] was = old.get(entry.getKey());
+            if (was == null) {
+                listener.accept(new Change(entry.getKey(), null, newValues.get(entry.getKey())));
+            } else if (!Arrays.equals(before.data, was[0], was[1], after.data, range[0], range[1])) {
+                listener.accept(new Change(entry.getKey(), oldValues.get(entry.getKey()), newValues.get(entry.getKey())));
+            }
+        }
+        for (String key : old.keySet()) {
+            if (!now.containsKey(key)) {
+                listener.accept(new Change(key, oldValues.get(key), null));
+            }
+        }
+    }
+
+    /**
+     * The output of a call made by a watch: its decoded object and where its
+     * bytes are in the data part of the response.
+     */
+    private static class Snapshot {
+        final TypeAdapter<?> adapter;
+        final byte[] data;
+        final int from;
+        final int to;
+        final Object decoded;
+
+        Snapshot(TypeAdapter<?> adapter, byte[] data, int from, int to, Object decoded) {
+            this.adapter = adapter;
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.decoded = decoded;
+        }
+
+        /** The ranges of the values of the output by key, if it is an object, or null */
+        Map<String, int[]> entries() {
+            int[] members = members(data, from, to);
+            if (members == null) {
+                return null;
+            }
+            HashMap<String, int[]> entries = new HashMap<>();
+            for (int i = 0; i < members.length; i += 4) {
+                String key = key(data, members[i], members[i + 1]);
+                if (key == null) {
+                    return null;
+                }
+                entries.put(key, new int[] { members[i + 2], members[i + 3] });
+            }
+            return entries;
+        }
+
+        static Map<String, Object> byKey(Map<?, ?> map) {
+            HashMap<String, Object> values = new HashMap<>();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                values.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            return values;
+        }
+
+        /** The range of the value of a member of the top-level object of some JSON, or null */
+        static int[] member(byte[] json, String name) {
+            int[] members = members(json, 0, json.length);
+            if (members == null) {
+                return null;
+            }
+            for (int i = 0; i < members.length; i += 4) {
+                if (named(json, members[i], members[i + 1], name)) {
+                    return new int[] { members[i + 2], members[i + 3] };
+                }
+            }
+            return null;
+        }
+
+        /** Whether a JSON key with its quotes is the given ASCII name, without decoding it */
+        private static boolean named(byte[] json, int from, int to, String name) {
+            if (to - from != name.length() + 2) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (json[from + 1 + i] != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Scans the JSON object in a range, without decoding it, and returns the
+         * start and end of the key and of the value of each member, or null if it
+         * is not an object.
+         */
+        static int[] members(byte[] json, int from, int to) {
+            int i = space(json, from, to);
+            if (i == to || json[i] != '{') {
+                return null;
+            }
+            int[] members = new int[16];
+            int count = 0;
+            i = space(json, i + 1, to);
+            if (i < to && json[i] == '}') {
+                return new int[0];
+            }
+            while (i < to && json[i] == '"') {
+                int key = i;
+                i = value(json, i, to);
+                if (i < 0) {
+                    return null;
+                }
+                int keyEnd = i;
+                i = space(json, i, to);
+                if (i == to || json[i] != ':') {
+                    return null;
+                }
+                int start = space(json, i + 1, to);
+                i = value(json, start, to);
+                if (i < 0) {
+                    return null;
+                }
+                if (count + 4 > members.length) {
+                    members = Arrays.copyOf(members, members.length * 2);
+                }
+                members[count++] = key;
+                members[count++] = keyEnd;
+                members[count++] = start;
+                members[count++] = i;
+                i = space(json, i, to);
+                if (i < to && json[i] == '}') {
+                    return Arrays.copyOf(members, count);
+                }
+                if (i == to || json[i] != ',') {
+                    return null;
+                }
+                i = space(json, i + 1, to);
+            }
+            return null;
+        }
+
+        /** The string of a JSON key with its quotes, or null if it cannot be read */
+        static String key(byte[] json, int from, int to) {
+            for (int i = from + 1; i < to - 1; i++) {
+                if (json[i] == '\\') {
+                    try (JsonReader in = new JsonReader(new Utf8Reader(Arrays.copyOfRange(json, from, to)))) {
+                        return in.nextString();
+                    } catch (IOException | IllegalStateException e) {
+                        return null;
+                    }
+                }
+            }
+            return new String(json, from + 1, to - from - 2, StandardCharsets.UTF_8);
+        }
+
+        private static int space(byte[] json, int i, int to) {
+            while (i < to && (json[i] == ' ' || json[i] == '\t' || json[i] == '\n' || json[i] == '\r')) {
+                i++;
+            }
+            return i;
+        }
+
+        /** Skips the JSON value that starts at i and returns where it ends, or -1 */
+        private static int value(byte[] json, int i, int to) {
+            if (i == to) {
+                return -1;
+            }
+            int depth = 0;
+            do {
+                byte b = json[i++];
+                if (b == '"') {
+                    while (i < to && json[i] != '"') {
+                        i += json[i] == '\\' ? 2 : 1;
+                    }
+                    if (i >= to) {
+                        return -1;
+                    }
+                    i++;
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth < 0) {
+                        return -1;
+                    }
+                } else if (depth == 0) {
+                    // a number or a literal
+                    while (i < to && json[i] != ',' && json[i] != '}' && json[i] != ']' && json[i] != ' '
+                            && json[i] != '\t' && json[i] != '\n' && json[i] != '\r') {
+                        i++;
+                    }
+                }
+            } while (depth > 0 && i < to);
+            return depth == 0 ? i : -1;
+        }
+    }
+
+    private final MultipartClient multipart = new MultipartClient();
+
+    /**
+     * Recent latencies of an endpoint, until the response headers are received.
+     */
+    private static class LatencyWindow {
+        private final long[] samples = new long[64];
+        private int count = 0;
+
+        public synchronized void add(long nanos) {
+            samples[count++ % samples.length] = nanos;
+        }
+
+        /** Returns the p95 of the recent latencies, or -1 with too few samples */
+        public synchronized long p95() {
+            int n = Math.min(count, samples.length);
+            if (n < 16) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(n * 0.95) - 1];
+        }
+    }
+
+    private final ConcurrentHashMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    /** Priority of the requests of a call, see Scheduler */
+    public enum Priority {
+        /** Calls that someone is waiting for, which are sent first */
+        INTERACTIVE,
+        /** Background calls, which are only sent when no interactive request waits */
+        BULK
+    }
+
+    /**
+     * Outbound scheduler of the requests of a client. A token bucket limits their
+     * rate, at most maxInFlight of them are in flight at once (from sending them
+     * until their response is closed) and the rest wait in a queue for each
+     * priority. Every request goes through it, retries and hedged requests
+     * included; cached and coalesced calls make no request, so they never wait.
+     */
+    public static class Scheduler {
+        private final double rate;
+        private final double burst;
+        private final int maxInFlight;
+        private final ArrayDeque<Waiter> interactive = new ArrayDeque<>();
+        private final ArrayDeque<Waiter> bulk = new ArrayDeque<>();
+        private final Histogram interactiveWaits = new Histogram();
+        private final Histogram bulkWaits = new Histogram();
+        private double tokens;
+        private long refilled = System.nanoTime();
+        private int inFlight = 0;
+        private boolean wakeup = false;
+
+        private static class Waiter {
+            final Priority priority;
+            final long enqueued = System.nanoTime();
+            final CompletableFuture<Permit> future = new CompletableFuture<>();
+
+            Waiter(Priority priority) {
+                this.priority = priority;
+            }
+        }
+
+        /** Permission to send one request, closed once its response is released */
+        public class Permit implements AutoCloseable {
+            /** Nanoseconds the request waited in the queue */
+            public final long waitNanos;
+
+            private final AtomicBoolean closed = new AtomicBoolean();
+
+            private Permit(long waitNanos) {
+                this.waitNanos = waitNanos;
+            }
+
+            public void close() {
+                if (closed.compareAndSet(false, true)) {
+                    release();
+                }
+            }
+        }
+
+        /**
+         * Sends at most rate requests per second on average, in bursts of up to
+         * burst requests, and keeps at most maxInFlight of them in flight. A rate of
+         * 0 or less means no rate limit.
+         */
+        public Scheduler(double rate, int burst, int maxInFlight) {
+            if (maxInFlight < 1 || (rate > 0 && burst < 1)) {
+                throw new IllegalArgumentException("maxInFlight and burst must be positive");
+            }
+            this.rate = rate;
+            this.burst = Math.max(burst, 1);
+            this.maxInFlight = maxInFlight;
+            this.tokens = this.burst;
+        }
+
+        /** Returns a permit for a request once it can be sent */
+        public CompletableFuture<Permit> acquireAsync(Priority priority) {
+            return enqueue(priority).future;
+        }
+
+        /** Blocks until a request can be sent and returns its permit */
+        public Permit acquire(Priority priority) throws InterruptedException {
+            Waiter waiter = enqueue(priority);
+            try {
+                return waiter.future.get();
+            } catch (InterruptedException e) {
+                if (waiter.future.cancel(false)) {
+                    synchronized (this) {
+                        queue(priority).remove(waiter);
+                    }
+                } else {
+                    // granted meanwhile
+                    waiter.future.join().close();
+                }
+                throw e;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /** Number of requests of a priority waiting to be sent */
+        public synchronized int queued(Priority priority) {
+            return queue(priority).size();
+        }
+
+        /** Number of requests sent whose response has not been released yet */
+        public synchronized int inFlight() {
+            return inFlight;
+        }
+
+        /** Times (in nanoseconds) that the requests of a priority waited to be sent */
+        public Histogram waits(Priority priority) {
+            return priority == Priority.BULK ? bulkWaits : interactiveWaits;
+        }
+
+        private ArrayDeque<Waiter> queue(Priority priority) {
+            return priority == Priority.BULK ? bulk : interactive;
+        }
+
+        private Waiter enqueue(Priority priority) {
+            Waiter waiter = new Waiter(priority);
+            synchronized (this) {
+                queue(priority).add(waiter);
+            }
+            dispatch();
+            return waiter;
+        }
+
+        private void release() {
+            synchronized (this) {
+                inFlight--;
+            }
+            dispatch();
+        }
+
+        /**
+         * Grants permits to the waiting requests, interactive ones first, while the
+         * limits allow it. If the bucket is empty, dispatches again when it has a
+         * token. Futures are completed outside the lock, as they run the requests.
+         */
+        private void dispatch() {
+            ArrayList<Waiter> granted = new ArrayList<>();
+            ArrayList<Permit> permits = new ArrayList<>();
+            long delay = -1;
+            synchronized (this) {
+                while (inFlight < maxInFlight) {
+                    Waiter waiter = interactive.isEmpty() ? bulk.peek() : interactive.peek();
+                    if (waiter == null) {
+                        break;
+                    }
+                    if (waiter.future.isDone()) {
+                        // cancelled
+                        queue(waiter.priority).poll();
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    if (rate > 0) {
+                        tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+                        refilled = now;
+                        if (tokens < 1) {
+                            if (!wakeup) {
+                                wakeup = true;
+                                delay = (long) Math.ceil((1 - tokens) * 1e9 / rate);
+                            }
+                            break;
+                        }
+                        tokens--;
+                    }
+                    queue(waiter.priority).poll();
+                    inFlight++;
+                    waits(waiter.priority).record(now - waiter.enqueued);
+                    granted.add(waiter);
+                    permits.add(new Permit(now - waiter.enqueued));
+                }
+            }
+            if (delay >= 0) {
+                CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+                    synchronized (this) {
+                        wakeup = false;
+                    }
+                    dispatch();
+                });
+            }
+            for (int i = 0; i < granted.size(); i++) {
+                if (!granted.get(i).future.complete(permits.get(i))) {
+                    permits.get(i).close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Scheduler of the requests of this client, which limits their rate and
+     * concurrency and orders them by priority, or null to send them right away.
+     */
+    public volatile Scheduler scheduler = null;
+
+    /**
+     * Spreads the requests of a client among several base URLs of the API, such
+     * as regional mirrors or reverse proxies in front of it. Each request goes to
+     * the endpoint with the lowest cost: its EWMA latency times its outstanding
+     * requests plus one, so that slow or busy endpoints get less traffic. The
+     * weight of a latency sample fades with a time constant of decay, and so does
+     * the latency of an endpoint without recent samples, so that it is tried
+     * again. Failed requests count as a latency of at least one second.
+     *
+     * An endpoint that fails ejectAfter requests in a row (connection errors,
+     * timeouts or HTTP 5xx) is ejected for the ejection time, which doubles each
+     * time it is ejected again without having served a request, up to
+     * maxEjection. When the time is up, it is probed in the background, and it
+     * gets requests again once a probe or a request succeeds. If all endpoints
+     * are ejected, requests go to the one whose ejection ends first. A router
+     * with a single endpoint never ejects it.
+     */
+    public static class Router {
+
+        private static final long FAILURE_NANOS = 1_000_000_000L;
+
+        /** A base URL of the API and its statistics */
+        public static class Endpoint {
+            public final String url;
+            private double latency = 0; // EWMA in nanoseconds
+            private long sampled = 0; // time of the last sample, 0 if none
+            private int outstanding = 0;
+            private long requests = 0;
+            private int failures = 0;
+            private int ejections = 0;
+            private boolean ejected = false;
+            private long ejectedUntil = 0;
+            private int generation = 0; // number of the current ejection, for its probes
+
+            private Endpoint(String url) {
+                this.url = url;
+            }
+
+            /** EWMA latency in nanoseconds, 0 if there are no samples yet */
+            public synchronized long latency() {
+                return (long) latency;
+            }
+
+            /** Requests sent that have not been answered yet */
+            public synchronized int outstanding() {
+                return outstanding;
+            }
+
+            /** Requests sent to this endpoint */
+            public synchronized long requests() {
+                return requests;
+            }
+
+            /** Whether it gets no requests until a probe or a request succeeds */
+            public synchronized boolean ejected() {
+                return ejected;
+            }
+
+            /** The latency to expect, faded by the age of the samples, or -1 if there are none */
+            private synchronized double expected(long now, double decay) {
+                return sampled == 0 ? -1 : latency * Math.exp(-(now - sampled) / decay);
+            }
+
+            private synchronized double cost(long now, double decay, double fallback) {
+                return (sampled == 0 ? fallback : expected(now, decay)) * (outstanding + 1);
+            }
+
+            private synchronized void sample(long now, long nanos, double decay) {
+                double weight = sampled == 0 ? 0 : Math.exp(-(now - sampled) / decay);
+                latency = latency * weight + nanos * (1 - weight);
+                sampled = now;
+            }
+
+            public String toString() {
+                return url;
+            }
+        }
+
+        private final Endpoint[] endpoints;
+
+        /** Consecutive failures after which an endpoint is ejected */
+        public volatile int ejectAfter = 3;
+
+        /** Time an endpoint is ejected for the first time */
+        public volatile Duration ejection = Duration.ofSeconds(5);
+
+        /** Longest time an endpoint is ejected */
+        public volatile Duration maxEjection = Duration.ofMinutes(2);
+
+        /** Time constant of the EWMA latencies */
+        public volatile Duration decay = Duration.ofSeconds(2);
+
+        /**
+         * Checks whether an ejected endpoint answers again, given its URL, or null to
+         * let it back when its ejection ends. JutgeApiClient sets one that calls
+         * misc.getTime.
+         */
+        public volatile Function<String, CompletableFuture<Boolean>> prober = null;
+
+        public Router(String... urls) {
+            if (urls.length == 0) {
+                throw new IllegalArgumentException("At least one URL is needed");
+            }
+            endpoints = new Endpoint[urls.length];
+            for (int i = 0; i < urls.length; i++) {
+                endpoints[i] = new Endpoint(urls[i]);
+            }
+        }
+
+        /** The endpoints, in the order of their URLs */
+        public Endpoint[] endpoints() {
+            return endpoints.clone();
+        }
+
+        /** Chooses the endpoint of a request, which must be reported with done */
+        public Endpoint pick() {
+            Endpoint chosen = endpoints[0];
+            if (endpoints.length > 1) {
+                long now = System.nanoTime();
+                double decay = Math.max(this.decay.toNanos(), 1);
+                // endpoints without samples are expected to be as fast as the fastest one
+                // that is not failing
+                double fallback = Double.MAX_VALUE;
+                for (Endpoint endpoint : endpoints) {
+                    synchronized (endpoint) {
+                        double expected = endpoint.expected(now, decay);
+                        if (expected >= 0 && endpoint.failures == 0) {
+                            fallback = Math.min(fallback, expected);
+                        }
+                    }
+                }
+                if (fallback == Double.MAX_VALUE) {
+                    fallback = 1;
+                }
+                // ties are broken at random by starting at a random endpoint
+                int start = ThreadLocalRandom.current().nextInt(endpoints.length);
+                Endpoint best = null;
+                double lowest = Double.MAX_VALUE;
+                Endpoint soonest = null;
+                long soonestUntil = Long.MAX_VALUE;
+                for (int i = 0; i < endpoints.length; i++) {
+                    Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+                    synchronized (endpoint) {
+                        if (endpoint.ejected) {
+                            if (soonest == null || endpoint.ejectedUntil - soonestUntil < 0) {
+                                soonest = endpoint;
+                                soonestUntil = endpoint.ejectedUntil;
+                            }
+                            continue;
+                        }
+                    }
+                    double cost = endpoint.cost(now, decay, fallback);
+                    if (cost < lowest) {
+                        best = endpoint;
+                        lowest = cost;
+                    }
+                }
+                chosen = best != null ? best : soonest;
+            }
+            synchronized (chosen) {
+                chosen.outstanding++;
+                chosen.requests++;
+            }
+            return chosen;
+        }
+
+        /**
+         * Reports that a request to an endpoint has been answered after the given
+         * time, successfully or not.
+         */
+        public void done(Endpoint endpoint, long nanos, boolean ok) {
+            long now = System.nanoTime();
+            endpoint.sample(now, ok ? nanos : Math.max(nanos, FAILURE_NANOS), Math.max(decay.toNanos(), 1));
+            int generation = -1;
+            long delay = 0;
+            synchronized (endpoint) {
+                endpoint.outstanding--;
+                if (ok) {
+                    endpoint.failures = 0;
+                    endpoint.ejections = 0;
+                    endpoint.ejected = false;
+                } else if (++endpoint.failures >= ejectAfter && !endpoint.ejected && endpoints.length > 1) {
+                    delay = eject(endpoint, now);
+                    generation = endpoint.generation;
+                }
+            }
+            if (generation >= 0) {
+                recheck(endpoint, generation, delay);
+            }
+        }
+
+        /** Ejects an endpoint and returns for how long */
+        private long eject(Endpoint endpoint, long now) {
+            long delay = Math.min(ejection.toNanos() << Math.min(endpoint.ejections, 20), maxEjection.toNanos());
+            endpoint.ejections++;
+            endpoint.ejected = true;
+            endpoint.ejectedUntil = now + delay;
+            endpoint.generation++;
+            return delay;
+        }
+
+        /** Probes an ejected endpoint in the background once its ejection ends */
+        private void recheck(Endpoint endpoint, int generation, long delay) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+                Function<String, CompletableFuture<Boolean>> prober = this.prober;
+                CompletableFuture<Boolean> probe;
+                try {
+                    probe = prober == null ? CompletableFuture.completedFuture(true) : prober.apply(endpoint.url);
+                } catch (RuntimeException e) {
+                    probe = CompletableFuture.completedFuture(false);
+                }
+                probe.whenComplete((healthy, error) -> {
+                    long next = -1;
+                    synchronized (endpoint) {
+                        if (!endpoint.ejected || endpoint.generation != generation) {
+                            return; // back already, or ejected again since
+                        }
+                        if (error == null && healthy) {
+                            endpoint.ejected = false;
+                            endpoint.failures = 0;
+                        } else {
+                            next = eject(endpoint, System.nanoTime());
+                        }
+                    }
+                    if (next >= 0) {
+                        recheck(endpoint, generation + 1, next);
+                    }
+                });
+            });
+        }
+    }
+
+    /** Router among the base URLs of this client, shared by its sessions */
+    public final Router router;
+
+    /**
+     * Transport used for one call: applies the timeouts, retries and hedging of
+     * the client around its transport.
+     */
+    private class CallTransport implements Transport {
+        private final String func;
+        private final boolean idempotent;
+        private final Priority priority;
+        private final CallMetrics metrics;
+
+        public CallTransport(String func, Priority priority, CallMetrics metrics) {
+            this.func = func;
+            this.idempotent = readOnly.contains(func);
+            this.priority = priority;
+            this.metrics = metrics;
+        }
+
+        public TransportResponse send(TransportRequest request) throws Exception {
+            prepare(request);
+            TransportResponse response = sendPrepared(request);
+            if (rejected(request, response)) {
+                response = sendPrepared(request);
+            }
+            return response;
+        }
+
+        private TransportResponse sendPrepared(TransportRequest request) throws Exception {
+            if (hedging(request)) {
+                try {
+                    return sendHedged(request, executor).get();
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                }
+            }
+            for (int attempt = 0;; attempt++) {
+                long start = System.nanoTime();
+                try {
+                    TransportResponse response = sendScheduled(request);
+                    if (response.statusCode >= 500 && retry(request, null, attempt)) {
+                        response.body.close();
+                    } else {
+                        record(response, start);
+                        return response;
+                    }
+                } catch (IOException e) {
+                    if (!retry(request, e, attempt)) {
+                        throw e;
+                    }
+                }
+                Thread.sleep(backoff(attempt));
+            }
+        }
+
+        public CompletableFuture<TransportResponse> sendAsync(TransportRequest request, Executor executor) {
+            prepare(request);
+            return sendPreparedAsync(request, executor).thenCompose(response -> rejected(request, response)
+                    ? sendPreparedAsync(request, executor)
+                    : CompletableFuture.completedFuture(response));
+        }
+
+        private CompletableFuture<TransportResponse> sendPreparedAsync(TransportRequest request, Executor executor) {
+            if (hedging(request)) {
+                return sendHedged(request, executor);
+            }
+            AtomicLong queued = new AtomicLong();
+            return sendWithRetries(request, executor, 0, queued).whenComplete((response, error) -> waited(queued.get()));
+        }
+
+        private void prepare(TransportRequest request) {
+            Duration timeout = timeouts.get(func);
+            request.timeout = timeout != null ? timeout : JutgeApiClient.this.timeout;
+            long threshold = compressionThreshold;
+            try {
+                if (threshold >= 0 && !compressionRejected && request.contentLength() >= threshold) {
+                    request.compress();
+                }
+            } catch (IOException e) {
+                // the length of a file is unknown, so it is not in memory either
+            }
+        }
+
+        /**
+         * Returns whether the server rejected a compressed request with HTTP 415, in
+         * which case it is sent uncompressed from now on.
+         */
+        private boolean rejected(TransportRequest request, TransportResponse response) {
+            if (response.statusCode != 415 || !request.uncompress()) {
+                return false;
+            }
+            compressionRejected = true;
+            closeQuietly(response.body);
+            return true;
+        }
+
+        /** Sends one request once the scheduler of the client, if any, allows it */
+        private TransportResponse sendScheduled(TransportRequest request) throws Exception {
+            Scheduler scheduler = JutgeApiClient.this.scheduler;
+            if (scheduler == null) {
+                return sendRouted(request);
+            }
+            Scheduler.Permit permit = scheduler.acquire(priority);
+            waited(permit.waitNanos);
+            try {
+                return holding(sendRouted(request), permit);
+            } catch (Exception e) {
+                permit.close();
+                throw e;
+            }
+        }
+
+        /** Same as sendScheduled, but adds the time waited for the scheduler to queued */
+        private CompletableFuture<TransportResponse> sendScheduledAsync(TransportRequest request, Executor executor,
+                AtomicLong queued) {
+            Scheduler scheduler = JutgeApiClient.this.scheduler;
+            if (scheduler == null) {
+                return sendRoutedAsync(request, executor);
+            }
+            return scheduler.acquireAsync(priority).thenCompose(permit -> {
+                queued.addAndGet(permit.waitNanos);
+                return sendRoutedAsync(request, executor).whenComplete((response, error) -> {
+                    if (error != null) {
+                        permit.close();
+                    }
+                }).thenApply(response -> holding(response, permit));
+            });
+        }
+
+        /** Sends one request to the endpoint chosen by the router */
+        private TransportResponse sendRouted(TransportRequest request) throws Exception {
+            Router.Endpoint endpoint = router.pick();
+            long start = System.nanoTime();
+            TransportResponse response;
+            try {
+                response = transport.send(request.withUrl(endpoint.url));
+            } catch (Exception e) {
+                router.done(endpoint, System.nanoTime() - start, false);
+                throw e;
+            }
+            router.done(endpoint, System.nanoTime() - start, response.statusCode < 500);
+            return response;
+        }
+
+        private CompletableFuture<TransportResponse> sendRoutedAsync(TransportRequest request, Executor executor) {
+            Router.Endpoint endpoint = router.pick();
+            long start = System.nanoTime();
+            CompletableFuture<TransportResponse> sent;
+            try {
+                sent = transport.sendAsync(request.withUrl(endpoint.url), executor);
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            return sent.whenComplete((response, error) -> router.done(endpoint, System.nanoTime() - start,
+                    error == null && response.statusCode < 500));
+        }
+
+        /**
+         * Adds to the metrics the time waited for the scheduler. Only the attempts
+         * that happen one after the other are added, never concurrent ones.
+         */
+        private void waited(long nanos) {
+            if (metrics != null) {
+                metrics.queueNanos += nanos;
+            }
+        }
+
+        /** Returns the response with a body that closes the permit when it is closed */
+        private TransportResponse holding(TransportResponse response, Scheduler.Permit permit) {
+            InputStream body = new FilterInputStream(response.body) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        permit.close();
+                    }
+                }
+            };
+            return new TransportResponse(response.statusCode, response.contentType, body, response.contentEncoding);
+        }
+
+        private boolean hedging(TransportRequest request) {
+            return hedge && idempotent && request.replayable();
+        }
+
+        /** Returns whether to retry after a failed attempt (error is null on HTTP 5xx) */
+        private boolean retry(TransportRequest request, Throwable error, int attempt) {
+            if (attempt >= retries || !request.replayable()) {
+                return false;
+            }
+            if (error instanceof ConnectException
+                    || error instanceof HttpConnectTimeoutException) {
+                // the request did not reach the server
+                return true;
+            }
+            return idempotent && (error == null || error instanceof IOException);
+        }
+
+        private long backoff(int attempt) {
+            long ceiling = retryBackoff.toMillis() << Math.min(attempt, 16);
+            return ThreadLocalRandom.current().nextLong(ceiling + 1);
+        }
+
+        private void record(TransportResponse response, long start) {
+            if (response.statusCode < 500) {
+                latencies.computeIfAbsent(func, f -> new LatencyWindow()).add(System.nanoTime() - start);
+            }
+        }
+
+        private CompletableFuture<TransportResponse> sendWithRetries(TransportRequest request, Executor executor,
+                int attempt, AtomicLong queued) {
+            long start = System.nanoTime();
+            CompletableFuture<TransportResponse> sent;
+            try {
+                sent = sendScheduledAsync(request, executor, queued);
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            return sent.handle((response, error) -> {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                boolean failed = cause != null || response.statusCode >= 500;
+                if (!failed || !retry(request, cause, attempt)) {
+                    if (cause != null) {
+                        return CompletableFuture.<TransportResponse>failedFuture(cause);
+                    }
+                    record(response, start);
+                    return CompletableFuture.completedFuture(response);
+                }
+                if (response != null) {
+                    closeQuietly(response.body);
+                }
+                Executor later = CompletableFuture.delayedExecutor(backoff(attempt),
+                        TimeUnit.MILLISECONDS, executor);
+                return CompletableFuture.runAsync(() -> {
+                }, later).thenCompose(ignored -> sendWithRetries(request, executor, attempt + 1, queued));
+            }).thenCompose(future -> future);
+        }
+
+        /** Sends a duplicate request if the first one is slower than the p95 */
+        private CompletableFuture<TransportResponse> sendHedged(TransportRequest request, Executor executor) {
+            LatencyWindow window = latencies.get(func);
+            long p95 = window == null ? -1 : window.p95();
+            long delay = p95 >= 0 ? p95 : hedgeDelay.toNanos();
+
+            CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+            int[] pending = { 1 };
+            boolean[] decided = { false };
+            // each request counts its own queue time, and only the one that decides the result reports it
+            BiConsumer<CompletableFuture<TransportResponse>, AtomicLong> race = (attempt, queued) -> attempt
+                    .whenComplete((response, error) -> {
+                        boolean decides;
+                        synchronized (pending) {
+                            boolean last = --pending[0] == 0;
+                            decides = !decided[0] && (error == null || last);
+                            decided[0] |= decides;
+                        }
+                        if (!decides) {
+                            if (error == null) {
+                                // the other request won
+                                closeQuietly(response.body);
+                            }
+                            return;
+                        }
+                        waited(queued.get());
+                        if (error != null) {
+                            result.completeExceptionally(error);
+                        } else if (!result.complete(response)) {
+                            closeQuietly(response.body);
+                        }
+                    });
+            AtomicLong first = new AtomicLong();
+            race.accept(sendWithRetries(request, executor, 0, first), first);
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, executor).execute(() -> {
+                synchronized (pending) {
+                    if (decided[0] || result.isDone() || pending[0] == 0) {
+                        return;
+                    }
+                    pending[0]++;
+                }
+                hedged.incrementAndGet();
+                AtomicLong second = new AtomicLong();
+                race.accept(sendWithRetries(request, executor, 0, second), second);
+            });
+            return result;
+        }
+    }
+
+    private final AtomicLong hedged = new AtomicLong();
+
+    /** Number of duplicate requests sent by hedging */
+    public long hedgedCalls() {
+        return hedged.get();
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    private final ConcurrentHashMap<String, CompletableFuture<Execution>> inflight = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /** Number of calls that have been served by another identical call in flight */
+    public long coalescedCalls() {
+        return coalesced.get();
+    }
+
+    public Execution execute(String func, JsonElement ijson, byte[][] ifiles) throws Exception {
+        return execute(func, out -> GSON.toJson(ijson, out), Upload.of(ifiles), null);
+    }
+
+    /**
+     * Executes func and decodes its output with the given adapter (null if it has
+     * no output), reporting the metrics of the call.
+     */
+    public Execution execute(String func, Input input, Upload[] ifiles, TypeAdapter<?> output) throws Exception {
+        return session.execute(func, input, ifiles, output);
+    }
+
+    private Execution execute(Meta meta, Priority priority, String func, Input input, Upload[] ifiles, TypeAdapter<?> output)
+            throws Exception {
+        CallMetrics metrics = observe(func);
+        if (metrics == null) {
+            return decodeOutput(call(meta, priority, func, input, ifiles, null), output, null);
+        }
+        metrics.ifiles = ifiles.length;
+        try {
+            return decodeOutput(call(meta, priority, func, input, ifiles, metrics), output, metrics);
+        } catch (Exception e) {
+            metrics.error = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            report(metrics);
+        }
+    }
+
+    private Execution call(Meta meta, Priority priority, String func, Input input, Upload[] ifiles, CallMetrics metrics)
+            throws Exception {
+        long start = metrics == null ? 0 : System.nanoTime();
+        byte[] data = multipart.encodeData(func, input, meta);
+        if (metrics != null) {
+            metrics.encodeNanos = System.nanoTime() - start;
+        }
+        Integer ttl = clientTTLs.get(func);
+        // polls of a watch must reach the server
+        boolean caching = useCache && ttl != null && ifiles.length == 0 && WATCHING.get() == null;
+        boolean coalescing = coalesce && ifiles.length == 0;
+
+        // check cache (the data part holds the func, the token and the input)
+        String key = caching || coalescing ? new String(data, StandardCharsets.UTF_8) : null;
+        if (caching) {
+            Execution execution = cached(key);
+            if (execution != null) {
+                if (metrics != null) {
+                    metrics.cached = true;
+                }
+                return execution;
+            }
+        }
+
+        Execution execution;
+        if (coalescing) {
+            execution = executeCoalesced(func, priority, key, data, metrics);
+        } else {
+            execution = multipart.execute(new CallTransport(func, priority, metrics), JUTGE_API_URL, data, ifiles, spoolThreshold,
+                    metrics);
+        }
+
+        // update cache
+        if (caching) {
+            store(key, execution, ttl);
+        }
+
+        return execution;
+    }
+
+    /**
+     * Same as execute, but without blocking the caller. The network exchange does
+     * not hold any thread and the response is parsed on the executor.
+     */
+    public CompletableFuture<Execution> executeAsync(String func, JsonElement ijson, byte[][] ifiles) {
+        return executeAsync(func, out -> GSON.toJson(ijson, out), Upload.of(ifiles), null);
+    }
+
+    public CompletableFuture<Execution> executeAsync(String func, Input input, Upload[] ifiles, TypeAdapter<?> output) {
+        return session.executeAsync(func, input, ifiles, output);
+    }
+
+    private CompletableFuture<Execution> executeAsync(Meta meta, Priority priority, String func, Input input, Upload[] ifiles,
+            TypeAdapter<?> output) {
+        CallMetrics metrics = observe(func);
+        if (metrics == null) {
+            return callAsync(meta, priority, func, input, ifiles, null)
+                    .thenApply(execution -> decodeOutput(execution, output, null));
+        }
+        metrics.ifiles = ifiles.length;
+        return callAsync(meta, priority, func, input, ifiles, metrics)
+                .thenApply(execution -> decodeOutput(execution, output, metrics))
+                .whenComplete((execution, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        metrics.error = cause.getClass().getSimpleName();
+                    }
+                    report(metrics);
+                });
+    }
+
+    private CompletableFuture<Execution> callAsync(Meta meta, Priority priority, String func, Input input, Upload[] ifiles,
+            CallMetrics metrics) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        byte[] data;
+        try {
+            data = multipart.encodeData(func, input, meta);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (metrics != null) {
+            metrics.encodeNanos = System.nanoTime() - start;
+        }
+        Integer ttl = clientTTLs.get(func);
+        // polls of a watch must reach the server
+        boolean caching = useCache && ttl != null && ifiles.length == 0 && WATCHING.get() == null;
+        boolean coalescing = coalesce && ifiles.length == 0;
+
+        // check cache (the data part holds the func, the token and the input)
+        String key = caching || coalescing ? new String(data, StandardCharsets.UTF_8) : null;
+        if (caching) {
+            Execution execution = cached(key);
+            if (execution != null) {
+                if (metrics != null) {
+                    metrics.cached = true;
+                }
+                return CompletableFuture.completedFuture(execution);
+            }
+        }
+
+        CompletableFuture<Execution> future;
+        if (coalescing) {
+            future = executeCoalescedAsync(func, priority, key, data, metrics);
+        } else {
+            future = multipart.executeAsync(new CallTransport(func, priority, metrics), executor, JUTGE_API_URL, data, ifiles,
+                    spoolThreshold, metrics);
+        }
+        return future
+                .thenApply(execution -> {
+                    // update cache
+                    if (caching) {
+                        store(key, execution, ttl);
+                    }
+                    return execution;
+                });
+    }
+
+    /**
+     * Keeps cached responses in a persistent cache in directory, so that other
+     * processes and later runs reuse them until they expire or the API version
+     * changes.
+     */
+    public void useDiskCache(Path directory) throws IOException {
+        diskCache = new DiskCache(directory, API_VERSION);
+    }
+
+    /**
+     * Looks up a key in the memory cache and then in the disk cache, and returns
+     * a copy of the execution, so that the caller decodes its own output.
+     */
+    private Execution cached(String key) {
+        Execution execution = cache.get(key);
+        DiskCache disk = diskCache;
+        if (execution == null && disk != null) {
+            ResponseCache.Entry entry = disk.get(key, spoolThreshold);
+            if (entry != null) {
+                cache.put(key, entry);
+                execution = entry.execution;
+            }
+        }
+        return execution == null ? null : execution.copy();
+    }
+
+    private void store(String key, Execution execution, int ttl) {
+        execution.share();
+        // the cache keeps a copy, which never holds the output decoded for this call
+        cache.put(key, execution.copy(), ttl);
+        DiskCache disk = diskCache;
+        if (disk != null) {
+            disk.put(key, execution, ttl);
+        }
+    }
+
+    /**
+     * Reads one element of a streamed output: a value of an array, or a name and
+     * its value in an object.
+     */
+    public interface ElementReader<T> {
+        T read(JsonReader in) throws IOException;
+    }
+
+    /**
+     * Same as execute, but the elements of an array or object output are decoded
+     * one at a time, straight from the response, as the stream is consumed. Only
+     * the current element is kept in memory. A cached response is streamed from
+     * the cache, but streamed responses are not cached. Close the stream (e.g.
+     * with try-with-resources) to release the response if it is not consumed.
+     */
+    public <T> java.util.stream.Stream<T> stream(String func, Input input, ElementReader<T> element)
+            throws Exception {
+        return session.stream(func, input, element);
+    }
+
+    private <T> java.util.stream.Stream<T> stream(Meta meta, Priority priority, String func, Input input, ElementReader<T> element)
+            throws Exception {
+        CallMetrics metrics = observe(func);
+        try {
+            long start = metrics == null ? 0 : System.nanoTime();
+            byte[] data = multipart.encodeData(func, input, meta);
+            if (metrics != null) {
+                metrics.encodeNanos = System.nanoTime() - start;
+            }
+            Execution execution = null;
+            if (useCache && clientTTLs.containsKey(func)) {
+                execution = cached(new String(data, StandardCharsets.UTF_8));
+            }
+            InputStream part;
+            if (execution != null) {
+                if (metrics != null) {
+                    metrics.cached = true;
+                }
+                part = new ByteArrayInputStream(execution.data);
+            } else {
+                part = multipart.executeStreaming(new CallTransport(func, priority, metrics), JUTGE_API_URL, data, metrics);
+            }
+            ElementSpliterator<T> elements = new ElementSpliterator<>(part, element, metrics);
+            return java.util.stream.StreamSupport.stream(elements, false).onClose(elements::close);
+        } catch (Exception e) {
+            if (metrics != null) {
+                metrics.error = e.getClass().getSimpleName();
+                report(metrics);
+            }
+            throw e;
+        }
+    }
+
+    /** Same as stream, but runs an action on each element and releases the response */
+    public <T> void forEach(String func, Input input, ElementReader<T> element, Consumer<? super T> action)
+            throws Exception {
+        session.forEach(func, input, element, action);
+    }
+
+    private class ElementSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+        private final JsonReader in;
+        private final ElementReader<T> element;
+        private final CallMetrics metrics;
+        private boolean started = false;
+        private boolean done = false;
+        private boolean closed = false;
+
+        ElementSpliterator(InputStream part, ElementReader<T> element, CallMetrics metrics) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.in = new JsonReader(new InputStreamReader(part, StandardCharsets.UTF_8));
+            this.element = element;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (done) {
+                return false;
+            }
+            T next;
+            long start = metrics == null ? 0 : System.nanoTime();
+            try {
+                if (!started) {
+                    started = true;
+                    done = !open();
+                }
+                if (!done && !in.hasNext()) {
+                    done = true;
+                }
+                next = done ? null : element.read(in);
+            } catch (IOException e) {
+                done = true;
+                if (metrics != null) {
+                    metrics.error = e.getClass().getSimpleName();
+                }
+                throw new UncheckedIOException(e);
+            } finally {
+                if (metrics != null) {
+                    metrics.decodeNanos += System.nanoTime() - start;
+                }
+            }
+            if (done) {
+                close();
+                return false;
+            }
+            action.accept(next);
+            return true;
+        }
+
+        /** Moves to the first element of the output, or returns false if there is no output */
+        private boolean open() throws IOException {
+            in.beginObject();
+            while (in.hasNext()) {
+                if (!in.nextName().equals("output")) {
+                    in.skipValue();
+                } else if (in.peek() == JsonToken.BEGIN_ARRAY) {
+                    in.beginArray();
+                    return true;
+                } else if (in.peek() == JsonToken.BEGIN_OBJECT) {
+                    in.beginObject();
+                    return true;
+                } else {
+                    in.skipValue();
+                }
+            }
+            return false;
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                // the elements that were needed have been read
+            }
+            if (metrics != null) {
+                report(metrics);
+            }
+        }
+    }
+
+    /** Decodes the output of an execution, once, and completes its metrics */
+    private static Execution decodeOutput(Execution execution, TypeAdapter<?> output, CallMetrics metrics) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        if (output != null) {
+            Polling polling = WATCHING.get();
+            if (polling != null) {
+                polling.observe(execution, output);
+            } else {
+                execution.output(output);
+            }
+        }
+        if (metrics != null) {
+            metrics.decodeNanos = System.nanoTime() - start;
+            metrics.ofiles = execution.ofiles.length;
+            metrics.error = execution.errorName();
+        }
+        return execution;
+    }
+
+    /** Joins the identical call in flight, or makes the request and shares it */
+    private Execution executeCoalesced(String func, Priority priority, String key, byte[] data, CallMetrics metrics) throws Exception {
+        CompletableFuture<Execution> future = new CompletableFuture<>();
+        CompletableFuture<Execution> leader = inflight.putIfAbsent(key, future);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            if (metrics != null) {
+                metrics.coalesced = true;
+            }
+            try {
+                return leader.get();
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            }
+        }
+        try {
+            Execution execution = multipart.execute(new CallTransport(func, priority, metrics), JUTGE_API_URL, data, new Upload[0],
+                    spoolThreshold, metrics);
+            execution.share();
+            future.complete(execution);
+            return execution;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(key, future);
+        }
+    }
+
+    private CompletableFuture<Execution> executeCoalescedAsync(String func, Priority priority, String key, byte[] data,
+            CallMetrics metrics) {
+        CompletableFuture<Execution> future = new CompletableFuture<>();
+        CompletableFuture<Execution> leader = inflight.putIfAbsent(key, future);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            if (metrics != null) {
+                metrics.coalesced = true;
+            }
+            return leader.copy();
+        }
+        multipart.executeAsync(new CallTransport(func, priority, metrics), executor, JUTGE_API_URL, data, new Upload[0], spoolThreshold,
+                metrics)
+                .whenComplete((execution, error) -> {
+                    inflight.remove(key, future);
+                    if (error != null) {
+                        future.completeExceptionally(error);
+                    } else {
+                        execution.share();
+                        future.complete(execution);
+                    }
+                });
+        // callers get copies, so that cancelling one does not cancel the others
+        return future.copy();
+    }
+
+    public JutgeApiClient() {
+        this("https://api.jutge.org/api");
+    }
+
+    /** The session of the calls made through this client itself */
+    private final Session session;
+
+    /**
+     * Returns a session of this client for another user, whose calls have the
+     * priority of the calls of this client.
+     */
+    public Session as(String token) {
+        return session.as(token);
+    }
+
+    /**
+     * Returns a session with the token of this client whose calls have the given
+     * priority, e.g. jutge.withPriority(Priority.BULK).student.statuses.getAll()
+     * for a single background call.
+     */
+    public Session withPriority(Priority priority) {
+        return session.withPriority(priority);
+    }
+
+    /** Returns the priority of the calls of this client */
+    public Priority priority() {
+        return session.priority();
+    }
+
+    /** Sets the priority of the calls of this client, e.g. BULK for a batch job */
+    public void setPriority(Priority priority) {
+        session.setPriority(priority);
+    }
+
+    /** Returns the token of this client, or null if it is anonymous */
+    public String token() {
+        return session.token();
+    }
+
+    /** Replaces the token of this client, e.g. after refreshing it */
+    public void setToken(String token) {
+        session.setToken(token);
+    }
+
+    /** Checks an ejected endpoint of the router: any answer but HTTP 5xx will do */
+    private CompletableFuture<Boolean> probe(String url) {
+        TransportRequest request;
+        try {
+            request = multipart.encode(url, multipart.encodeData("misc.getTime", null, null), new Upload[0]);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+        request.timeout = timeout;
+        CompletableFuture<TransportResponse> sent;
+        try {
+            sent = transport.sendAsync(request, executor);
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return sent.handle((response, error) -> {
+            if (response != null) {
+                closeQuietly(response.body);
+            }
+            return error == null && response.statusCode < 500;
+        });
+    }
+
+    /** Clear the contents of the cache */
+    public void clearCache() {
+        cache.clear();
+    }
+
+    private static final TypeAdapter<JsonElement> JSON = GSON.getAdapter(JsonElement.class);
+
+    public void login(String email, String password) throws Exception {
+        session.login(email, password);
+    }
+
+    public void logout() throws Exception {
+        session.logout();
+    }
+
+    /**
+     * A user of the API: a token, the priority of its calls and the modules to
+     * make them. Sessions are cheap, as all their calls go through the client
+     * that created them, sharing its transport, cache, settings and metrics.
+     * Logging in or out of a session only changes the token of that session.
+     *
+     * Example:
+     *
+     * <pre>
+     * var alice = jutge.as(aliceToken);
+     * var bob = jutge.as(bobToken);
+     * alice.student.profile.get();
+     * </pre>
+     */
+    public class Session {
+
+        /** Credentials of the calls of this session, replaced as a whole */
+        private volatile Meta meta;
+
+        private volatile Priority priority;
+
+        // SESSION_MODULES_HERE
+
+        private Session(Meta meta, Priority priority) {
+            this.meta = meta;
+            this.priority = priority;
+            initModules();
+        }
+
+        /** The client that makes the calls of this session */
+        public JutgeApiClient client() {
+            return JutgeApiClient.this;
+        }
+
+        /** Returns a session of the same client for another user, with the priority of this one */
+        public Session as(String token) {
+            return new Session(token == null ? null : new Meta(token), priority);
+        }
+
+        /** Returns a session with the token of this one whose calls have the given priority */
+        public Session withPriority(Priority priority) {
+            return new Session(meta, priority);
+        }
+
+        /** Returns the priority of the calls of this session */
+        public Priority priority() {
+            return priority;
+        }
+
+        /** Sets the priority of the calls of this session */
+        public void setPriority(Priority priority) {
+            this.priority = priority;
+        }
+
+        /** Returns the token of this session, or null if it is anonymous */
+        public String token() {
+            Meta meta = this.meta;
+            return meta == null ? null : meta.token;
+        }
+
+        /** Replaces the token of this session, e.g. after refreshing it */
+        public void setToken(String token) {
+            meta = token == null ? null : new Meta(token);
+        }
+
+        /** Same as JutgeApiClient.execute, with the token and priority of this session */
+        public Execution execute(String func, Input input, Upload[] ifiles, TypeAdapter<?> output) throws Exception {
+            return JutgeApiClient.this.execute(meta, priority, func, input, ifiles, output);
+        }
+
+        public Execution execute(String func, JsonElement ijson, byte[][] ifiles) throws Exception {
+            return execute(func, out -> GSON.toJson(ijson, out), Upload.of(ifiles), null);
+        }
+
+        /** Same as JutgeApiClient.executeAsync, with the token and priority of this session */
+        public CompletableFuture<Execution> executeAsync(String func, Input input, Upload[] ifiles,
+                TypeAdapter<?> output) {
+            return JutgeApiClient.this.executeAsync(meta, priority, func, input, ifiles, output);
+        }
+
+        public CompletableFuture<Execution> executeAsync(String func, JsonElement ijson, byte[][] ifiles) {
+            return executeAsync(func, out -> GSON.toJson(ijson, out), Upload.of(ifiles), null);
+        }
+
+        /** Same as JutgeApiClient.stream, with the token and priority of this session */
+        public <T> java.util.stream.Stream<T> stream(String func, Input input, ElementReader<T> element)
+                throws Exception {
+            return JutgeApiClient.this.stream(meta, priority, func, input, element);
+        }
+
+        /** Same as stream, but runs an action on each element and releases the response */
+        public <T> void forEach(String func, Input input, ElementReader<T> element, Consumer<? super T> action)
+                throws Exception {
+            try (java.util.stream.Stream<T> elements = stream(func, input, element)) {
+                elements.forEach(action);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        public void login(String email, String password) throws Exception {
+            // the credentials are read as JSON, whatever the shape of the generated models
+            Execution execution = execute("auth.login", out -> {
+                out.beginObject();
+                out.name("email").value(email);
+                out.name("password").value(password);
+                out.endObject();
+            }, new Upload[0], JSON);
+            var credentials = execution.output(JSON).getAsJsonObject();
+            String token = credentials.has("token") ? credentials.get("token").getAsString() : "";
+            if (token.equals("")) {
+                JsonElement error = credentials.get("error");
+                throw new Exception("Login failed: " + (error != null && error.isJsonPrimitive() ? error.getAsString() : error));
+            }
+            meta = new Meta(token);
+        }
+
+        public void logout() throws Exception {
+            auth.logout();
+            meta = null;
+        }
     }
 
     // MAIN_MODULE_HERE
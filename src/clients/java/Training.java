@@ -0,0 +1,130 @@
+package com.jutge.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Training run for an AppCDS archive of the client. It serves a stand-in API
+ * on a local port that answers every call with a null output, and calls every
+ * endpoint once with default arguments, so that the classes used by the calls
+ * are loaded. Most calls fail or return null, but that does not matter: only
+ * the loaded classes do.
+ *
+ * The build runs it next to JutgeApiClient-fat.jar when JAVA_APPCDS is set,
+ * compiled into a separate directory so that it is not shipped in the jar. The
+ * run only lists the loaded classes; the archive is then dumped from the jar
+ * alone, so that it applies to any class path that starts with the jar. The
+ * archive only works with the jar at the path it was created with, so build it
+ * again where the jar is deployed:
+ *
+ * javac -cp JutgeApiClient-fat.jar -d training Training.java
+ * java -XX:DumpLoadedClassList=classes.lst -cp JutgeApiClient-fat.jar:training com.jutge.api.Training
+ * java -Xshare:dump -XX:SharedClassListFile=classes.lst -XX:SharedArchiveFile=JutgeApiClient.jsa -cp JutgeApiClient-fat.jar
+ * java -XX:SharedArchiveFile=JutgeApiClient.jsa -cp JutgeApiClient-fat.jar:... Tool
+ */
+public class Training {
+
+    private static final String BOUNDARY = "----jutge-training-boundary";
+
+    private static final byte[] RESPONSE = ("--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"data\"\r\n"
+            + "Content-Type: application/json\r\n\r\n"
+            + "{\"output\":null,\"operation_id\":\"training\",\"time\":\"2025-01-01T00:00:00.000Z\",\"duration\":0}\r\n"
+            + "--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", Training::answer);
+        server.start();
+        try {
+            JutgeApiClient jutge = new JutgeApiClient("http://127.0.0.1:" + server.getAddress().getPort() + "/api");
+            jutge.metrics = new JutgeApiClient.MetricsRecorder();
+            int calls = exercise(jutge);
+            System.out.println("Trained with " + calls + " calls");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void answer(HttpExchange exchange) throws IOException {
+        try (exchange; InputStream in = exchange.getRequestBody()) {
+            in.transferTo(OutputStream.nullOutputStream());
+            exchange.getResponseHeaders().set("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            exchange.getResponseBody().write(RESPONSE);
+        }
+    }
+
+    /** Calls every endpoint of a module and of its submodules, and returns how many */
+    private static int exercise(Object module) throws Exception {
+        int calls = 0;
+        for (Field field : module.getClass().getFields()) {
+            if (field.getType().getSimpleName().startsWith("Module") && !Modifier.isStatic(field.getModifiers())) {
+                Object submodule = field.get(module);
+                if (submodule != null) {
+                    calls += exercise(submodule);
+                }
+            }
+        }
+        if (module instanceof JutgeApiClient) {
+            return calls;
+        }
+        for (Method method : module.getClass().getDeclaredMethods()) {
+            if (Modifier.isPublic(method.getModifiers()) && !Modifier.isStatic(method.getModifiers())) {
+                call(module, method);
+                calls++;
+            }
+        }
+        return calls;
+    }
+
+    private static void call(Object module, Method method) {
+        Class<?>[] types = method.getParameterTypes();
+        Object[] arguments = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            arguments[i] = defaultValue(types[i]);
+        }
+        try {
+            Object result = method.invoke(module, arguments);
+            if (result instanceof CompletableFuture) {
+                ((CompletableFuture<?>) result).handle((value, error) -> null).join();
+            } else if (result instanceof java.util.stream.Stream) {
+                try (java.util.stream.Stream<?> stream = (java.util.stream.Stream<?>) result) {
+                    stream.count();
+                }
+            }
+        } catch (InvocationTargetException | RuntimeException e) {
+            // expected, the answers are not what the endpoints return
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == String.class) {
+            return "";
+        } else if (type == byte[].class) {
+            return new byte[0];
+        }
+        return null;
+    }
+}
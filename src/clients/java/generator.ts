@@ -6,14 +6,46 @@ import path from 'path'
 import { pascal } from 'radash'
 import { withTmpDir } from '../../utilities'
 
-export async function genJavaClient(dir: ApiDir): Promise<string> {
-    return await format(await new JavaGenerator(dir).generate())
+export type JavaOptions = {
+    // emit ArrayList for arrays, int[] and double[] for arrays of numbers and records for
+    // the models that are only received, instead of Vector and mutable classes
+    lean?: boolean
+}
+
+export async function genJavaClient(dir: ApiDir, options: JavaOptions = {}): Promise<string> {
+    return await format(await new JavaGenerator(dir, options).generate())
+}
+
+// Reflection metadata of native-image for the compiled classes of the client (the names of the
+// files in com/jutge/api without .class): models and modules are fully accessible, so that
+// tools can reflect on them, and anonymous classes (TypeToken subclasses) keep their generic
+// superclass, which Gson reads
+export function genJavaNativeImageConfig(dir: ApiDir, classes: string[]): string {
+    const models = new Set(dir.models.map(([name]) => `JutgeApiClient$${name}`))
+    const config = []
+    for (const klass of classes.sort()) {
+        const name = `com.jutge.api.${klass}`
+        if (models.has(klass)) {
+            config.push({ name, allDeclaredFields: true, allDeclaredConstructors: true, allDeclaredMethods: true })
+        } else if (/^JutgeApiClient\$Module\w*$/.test(klass)) {
+            config.push({ name, allPublicFields: true, allPublicMethods: true })
+        } else if (/^JutgeApiClient\$.*\$\d+$/.test(klass)) {
+            config.push({ name })
+        }
+    }
+    return JSON.stringify(config, null, 4) + '\n'
 }
 
 class JavaGenerator {
     private aliases: Map<string, string> = new Map()
+    private records: Set<string> = new Set()
 
-    constructor(private dir: ApiDir) {}
+    constructor(
+        private dir: ApiDir,
+        private options: JavaOptions = {},
+    ) {
+        if (options.lean) this.records = this.outputOnlyModels()
+    }
 
     private isVoid(model: any): boolean {
         if (model.type === 'void') return true
@@ -25,16 +57,44 @@ class JavaGenerator {
         const preamble = this.genPreamble()
         const skeleton = await this.genSkeleton()
         const models = this.genModels()
+        const adapters = this.genAdapters()
         const modules = this.genModule(this.dir.root, [], true)
         const main = this.genMainModule(this.dir.root)
+        const session = this.genSessionModules(this.dir.root)
         const source = skeleton
             .replace('// PREAMBLE_HERE', preamble)
             .replace('// MODELS_HERE', models)
+            .replace('// ADAPTERS_HERE', adapters)
             .replace('// MODULES_HERE', modules)
             .replace('// MAIN_MODULE_HERE', main)
+            .replace('// SESSION_MODULES_HERE', session)
         return source
     }
 
+    // models with properties that are not reachable from the input of any endpoint
+    private outputOnlyModels(): Set<string> {
+        const schemas = new Map(this.dir.models)
+        const inputs: Set<string> = new Set()
+        const visit = (model: any) => {
+            if (model === null || typeof model !== 'object') return
+            if (typeof model.$ref === 'string' && !inputs.has(model.$ref)) {
+                inputs.add(model.$ref)
+                visit(schemas.get(model.$ref))
+            }
+            for (const value of Object.values(model)) visit(value)
+        }
+        const visitModule = (module: ApiModuleDir) => {
+            for (const endpoint of module.endpoints) visit(endpoint.input)
+            for (const submodule of module.submodules) visitModule(submodule)
+        }
+        visitModule(this.dir.root)
+        const records: Set<string> = new Set()
+        for (const [name, model] of this.dir.models) {
+            if (model.type === 'object' && 'properties' in model && !inputs.has(name)) records.add(name)
+        }
+        return records
+    }
+
     private genPreamble(): string {
         const info = this.dir.info
         return `
@@ -51,7 +111,8 @@ ${info.description}
 Notes:
 
     - functions that return files are not supported yet.
-    - ifiles are implemented as byte[].
+    - ifiles can be given as byte[], Path, InputStream or Upload; files and streams are not loaded in memory.
+    - models are mapped by generated adapters, without reflection.${this.options.lean ? '\n    - lean collections: arrays are ArrayList, int[] or double[], and received models are records.' : ''}
     - whatch out for optionals and nulls.
 
 */
@@ -77,6 +138,98 @@ Notes:
         }
     }
 
+    private genAdapters(): string {
+        const models = this.dir.models.filter(([_, model]) => model.type === 'object' && 'properties' in model)
+        const adapters = models.map(([name, model]) => this.genAdapter(name, model))
+        const cases = models.map(([name, _]) => `        if (raw == ${name}.class) return (TypeAdapter<T>) new ${name}Adapter(gson);`)
+        return `
+${adapters.join('\n')}
+
+/** Provides the adapters of the models to Gson */
+private static class ModelAdapterFactory implements TypeAdapterFactory {
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> raw = type.getRawType();
+${cases.join('\n')}
+        if (raw == int[].class) return (TypeAdapter<T>) new IntArrayAdapter();
+        if (raw == double[].class) return (TypeAdapter<T>) new DoubleArrayAdapter();
+        return null;
+    }
+}
+`
+    }
+
+    private genAdapter(name: string, model: any): string {
+        const fields = Object.entries(model.properties).map(([key, value]: [string, any]) => ({
+            key,
+            field: namify(key),
+            type: this.typify(value, name, '', 1),
+        }))
+        const delegates = fields.filter((f) => !scalarReaders[f.type])
+
+        const decls = delegates.map((f) => `    private final TypeAdapter<${objectify(f.type)}> ${f.field}Adapter;`)
+        const inits = delegates.map((f) => `        ${f.field}Adapter = gson.getAdapter(new TypeToken<${objectify(f.type)}>() {});`)
+        // records are built once all their components have been read
+        const record = this.records.has(name)
+        const target = (field: string) => (record ? field : `result.${field}`)
+        const source = (field: string) => (record ? `value.${field}()` : `value.${field}`)
+        const reads = fields.map((f) => {
+            const read = scalarReaders[f.type] ? `${scalarReaders[f.type]}(in)` : `${f.field}Adapter.read(in)`
+            return `            case "${f.key}":
+                ${target(f.field)} = ${read};
+                break;`
+        })
+        const writes = fields.map((f) => {
+            if (isPrimitive(f.type)) return `        out.name("${f.key}").value(${source(f.field)});`
+            const write = scalarReaders[f.type] ? `out.name("${f.key}").value(${source(f.field)});` : `${f.field}Adapter.write(out.name("${f.key}"), ${source(f.field)});`
+            return `        if (${source(f.field)} != null) {
+            ${write}
+        }`
+        })
+        const locals = fields.map((f) => `        ${f.type} ${f.field} = ${defaultValue(f.type)};`)
+        const init = record ? locals.join('\n') : `        ${name} result = new ${name}();`
+        const result = record ? `new ${name}(${fields.map((f) => f.field).join(', ')})` : 'result'
+
+        return `
+private static class ${name}Adapter extends ModelAdapter<${name}> {
+${decls.join('\n')}
+
+    ${name}Adapter(Gson gson) {
+${inits.join('\n')}
+    }
+
+    @Override
+    public ${name} read(JsonReader in) throws IOException {
+        if (readNull(in)) {
+            return null;
+        }
+${init}
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+${reads.join('\n')}
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return ${result};
+    }
+
+    @Override
+    public void write(JsonWriter out, ${name} value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+${writes.join('\n')}
+        out.endObject();
+    }
+}
+`
+    }
+
     private genModule(module: ApiModuleDir, path: string[], root: boolean = false): string {
         const name = root ? 'Module' : module.name
 
@@ -95,11 +248,11 @@ ${module.description || 'No description yet'}
 @SuppressWarnings("unused")
 public static class ${pascal(path.join('_') + '_' + name)} {
 
-    private JutgeApiClient root;
+    private Session root;
 
 ${indent(submodules_decls.join('\n'))}
 
-    public ${pascal(path.join('_') + '_' + name)}(JutgeApiClient root) {
+    public ${pascal(path.join('_') + '_' + name)}(Session root) {
         this.root = root;
 ${indent2(submodules_inits.join('\n'))}
     }
@@ -124,40 +277,120 @@ ${submodules.join('\n')}
 
         const submodules_inits = module.submodules
             .filter(this.accept_module)
-            .map((submodule) => `this.${submodule.name} = new ${pascal('Module_' + submodule.name)}(this);`)
+            .map((submodule) => `this.${submodule.name} = session.${submodule.name};`)
 
         return `
+    /** Version of the API this client was generated for */
+    public static final String API_VERSION = ${JSON.stringify(this.dir.info.version)};
+
 ${indent(submodules_decls.join('\n'))}
 
-    public JutgeApiClient() {
+    /** A client for the API at the given URL (e.g. a local server) */
+    public JutgeApiClient(String url) {
+        this(new String[] { url });
+    }
+
+    /**
+     * A client for the API at several base URLs (e.g. regional mirrors), among
+     * which its requests are spread by its router
+     */
+    public JutgeApiClient(String... urls) {
+        this.router = new Router(urls);
+        this.JUTGE_API_URL = urls[0];
+        router.prober = this::probe;
+        this.session = new Session(null, Priority.INTERACTIVE);
+        initModules();
+${this.genClientTtls(module)}
+${this.genReadOnly(module)}
+    }
+
+    private void initModules() {
 ${indent2(submodules_inits.join('\n'))}
     }
 `
     }
 
+    // the modules of a session, which the client shares with its own session
+    private genSessionModules(module: ApiModuleDir): string {
+        const submodules = module.submodules.filter(this.accept_module)
+        const submodules_decls = submodules.map((submodule) => `public ${pascal('Module_' + submodule.name)} ${submodule.name};`)
+        const submodules_inits = submodules.map((submodule) => `this.${submodule.name} = new ${pascal('Module_' + submodule.name)}(this);`)
+
+        return `${indent2(submodules_decls.join('\n')).trimStart()}
+
+        private void initModules() {
+${indent(indent2(submodules_inits.join('\n')))}
+        }`
+    }
+
+    private genClientTtls(module: ApiModuleDir): string {
+        const ttls: Map<string, number> = new Map()
+        this.genClientTtlsRec(module, [], ttls)
+        const values = []
+        for (const [key, value] of ttls) {
+            values.push(`        this.clientTTLs.put("${key}", ${value});`)
+        }
+        return values.join('\n')
+    }
+
+    private genClientTtlsRec(module: ApiModuleDir, path: string[], ttls: Map<string, number>) {
+        path = path.concat(module.name)
+        for (const endpoint of module.endpoints) {
+            if (endpoint.clientTtl) {
+                ttls.set(path.slice(1).concat(endpoint.name).join('.'), endpoint.clientTtl)
+            }
+        }
+        for (const submodule of module.submodules) {
+            this.genClientTtlsRec(submodule, path, ttls)
+        }
+    }
+
+    private genReadOnly(module: ApiModuleDir): string {
+        const funcs: string[] = []
+        this.genReadOnlyRec(module, [], funcs)
+        return funcs.map((func) => `        this.readOnly.add("${func}");`).join('\n')
+    }
+
+    // endpoints are read-only if they are cached by clients or they are getters without ifiles
+    private genReadOnlyRec(module: ApiModuleDir, path: string[], funcs: string[]) {
+        path = path.concat(module.name)
+        for (const endpoint of module.endpoints) {
+            const getter = /^get([A-Z]|$)/.test(endpoint.name) && (endpoint.ifiles ?? 'none') === 'none'
+            if (endpoint.clientTtl || getter) {
+                funcs.push(path.slice(1).concat(endpoint.name).join('.'))
+            }
+        }
+        for (const submodule of module.submodules) {
+            this.genReadOnlyRec(submodule, path, funcs)
+        }
+    }
+
     private genEndpoint(endpoint: ApiEndpointDir, path: string[], root: boolean = false): string {
         const { name, input, output, summary, description, actor, status } = endpoint
 
         let inlined = false
         let params = ''
         let args = 'null'
+        let call_args = ''
         if (!this.isVoid(input)) {
             if (this.isInlined(input)) {
                 inlined = true
                 params = this.typify(input, '', path.join('_'), 0)
+                call_args = Object.keys(input.properties).join(', ')
             } else {
                 const param = input.param || 'data'
                 params = `${this.typify(input, '', path.join('_'), 0)} ${param}`
+                call_args = param
             }
             args = input.param || 'data'
         }
         let ifiles_decl
         if (endpoint.ifiles == 'many') {
-            ifiles_decl = 'byte[][] the_ifiles = ifiles;'
+            ifiles_decl = 'Upload[] the_ifiles = ifiles;'
         } else if (endpoint.ifiles == 'one') {
-            ifiles_decl = 'byte[][] the_ifiles = new byte[][]{ifile};'
+            ifiles_decl = 'Upload[] the_ifiles = new Upload[]{ifile};'
         } else {
-            ifiles_decl = 'byte[][] the_ifiles = new byte[0][0];'
+            ifiles_decl = 'Upload[] the_ifiles = new Upload[0];'
         }
 
         let result = 'void'
@@ -176,7 +409,7 @@ ${indent2(submodules_inits.join('\n'))}
             if (this.isVoid(endpoint.output)) {
                 result = `Download[]`
             } else {
-                result = `Tuple<${result}, Download[]]>`
+                result = `Tuple<${result}, Download[]>`
             }
         }
 
@@ -184,47 +417,117 @@ ${indent2(submodules_inits.join('\n'))}
         if (endpoint.ifiles == 'none') {
             ifiles_parameter = ''
         } else if (endpoint.ifiles == 'one') {
-            ifiles_parameter = (!this.isVoid(input) ? ', ' : '') + 'byte[] ifile'
+            ifiles_parameter = (!this.isVoid(input) ? ', ' : '') + 'Upload ifile'
         } else {
-            ifiles_parameter = (!this.isVoid(input) ? ', ' : '') + 'byte[][] ifiles'
+            ifiles_parameter = (!this.isVoid(input) ? ', ' : '') + 'Upload[] ifiles'
         }
 
-        const with_ofiles = endpoint.ofiles !== 'none'
-        const without_output = with_ofiles && this.isVoid(endpoint.output)
+        // overloads that take the ifiles from memory, files or streams
+        let overloads = ''
+        if (endpoint.ifiles == 'one' || endpoint.ifiles == 'many') {
+            const ifiles_name = endpoint.ifiles == 'one' ? 'ifile' : 'ifiles'
+            const brackets = endpoint.ifiles == 'one' ? '' : '[]'
+            const comma = !this.isVoid(input) ? ', ' : ''
+            const call = `${call_args}${comma}Upload.of(${ifiles_name})`
+            overloads = ['byte[]', 'Path', 'InputStream']
+                .map(
+                    (type) => `
+public ${result} ${name}(${params}${comma}${type}${brackets} ${ifiles_name}) throws Exception {
+    ${result === 'void' ? '' : 'return '}${name}(${call});
+}
 
-        let code0 = ''
-        if (inlined) {
-            const content = Object.entries(input.properties)
-                .map(([key, _]: [string, any]) => `    ijson.add("${key}", new Gson().toJsonTree(${key}).getAsJsonObject());`)
+public CompletableFuture<${objectify(result)}> ${name}Async(${params}${comma}${type}${brackets} ${ifiles_name}) {
+    return ${name}Async(${call});
+}`,
+                )
                 .join('\n')
+        }
+
+        const with_ofiles = endpoint.ofiles !== 'none'
+        const without_output = with_ofiles && this.isVoid(endpoint.output)
 
-            code0 = `JsonObject ijson = new JsonObject();\n${content}`
+        // adapters of the endpoint, resolved once per class
+        const constants: string[] = []
+        const adapterOf = (constant: string, type: string) => {
+            constants.push(`private static final TypeAdapter<${objectify(type)}> ${constant} = GSON.getAdapter(new TypeToken<${objectify(type)}>() {});`)
+            return constant
         }
 
-        let init
+        // the input is written straight to the data part
+        let code0
         if (this.isVoid(input)) {
-            init = 'null'
-        } else if (endpoint.input.type == 'string') {
-            init = `JsonParser.parseString(${endpoint.input.param || 'data'})`
-        } else if (endpoint.input.type == 'int' || endpoint.input.type == 'number' || endpoint.input.type == 'integer') {
-            init = `JsonParser.parseString(String.valueOf(${endpoint.input.param || 'data'}))`
+            code0 = 'Input ijson = null;'
+        } else if (inlined) {
+            const content = Object.entries(input.properties)
+                .map(([key, value]: [string, any]) => {
+                    const type = this.typify(value, '', path.join('_'), 1)
+                    if (scalarReaders[type]) return `    out.name("${key}").value(${key});`
+                    return `    ${adapterOf(`${name}_${key}`, type)}.write(out.name("${key}"), ${key});`
+                })
+                .join('\n')
+            code0 = `Input ijson = out -> {\n    out.beginObject();\n${content}\n    out.endObject();\n};`
         } else {
-            init = `new Gson().toJsonTree(${args}).getAsJsonObject()`
+            const type = this.typify(input, '', path.join('_'), 0)
+            if (scalarReaders[type]) {
+                code0 = `Input ijson = out -> out.value(${args});`
+            } else {
+                code0 = `Input ijson = out -> ${adapterOf(`${name}Input`, type)}.write(out, ${args});`
+            }
         }
 
-        const code1 = `${inlined ? '' : `JsonElement ijson = ${init};\n`}Execution execution = root.execute("${root ? '' : path.splice(1).join('.') + '.'}${name}", ijson, the_ifiles);`
+        const func = `${root ? '' : path.slice(1).join('.') + '.'}${name}`
 
+        // the output is decoded by execute, so that it is measured and shared
+        let outputAdapter = 'null'
         let code2 = ''
         if (!without_output) {
             const t = this.typify(endpoint.output, 'NAME', path.join('_'), 99)
-            let t2 = t
-            if (t == 'int') t2 = 'Integer'
-            else if (t == 'double') t2 = 'Double'
             if (!this.isVoid(endpoint.output)) {
-                code2 = `${t} result = new Gson().fromJson(execution.output, new TypeToken<${t2}>(){}.getType());`
+                outputAdapter = adapterOf(`${name}Output`, t)
+                code2 = `${t} result = execution.output(${outputAdapter});`
             }
         }
 
+        // large map and array outputs can also be decoded one element at a time
+        let streaming = ''
+        if (endpoint.ifiles == 'none' && !with_ofiles && !this.isVoid(endpoint.output)) {
+            const t = this.typify(endpoint.output, 'NAME', path.join('_'), 99)
+            const map = /^HashMap<String, (.*)>$/.exec(t)
+            const array = /^(?:Vector|ArrayList)<(.*)>$/.exec(t)
+            const base = map ? map[1] : array ? array[1] : null
+            if (base) {
+                const element = adapterOf(`${name}Element`, base)
+                const type = map ? `Map.Entry<String, ${base}>` : base
+                const reader = map ? `in -> new AbstractMap.SimpleImmutableEntry<>(in.nextName(), ${element}.read(in))` : `${element}::read`
+                const action = map ? `BiConsumer<String, ${base}>` : `Consumer<${base}>`
+                const accept = map ? `entry -> action.accept(entry.getKey(), entry.getValue())` : 'action'
+                streaming = `
+/**
+Streaming version of ${name}: ${summary || 'No summary'}
+
+The elements are decoded one at a time as the stream is consumed. Close the stream to release the response.
+*/
+public java.util.stream.Stream<${type}> ${name}Stream(${params}) throws Exception {
+
+    ${code0}
+    return root.stream("${func}", ijson, ${reader});
+}
+
+/**
+Runs an action on each element of ${name}, decoding them one at a time.
+*/
+public void ${name}ForEach(${params}${params ? ', ' : ''}${action} action) throws Exception {
+
+    ${code0}
+    root.<${type}>forEach("${func}", ijson, ${reader}, ${accept});
+}
+`
+            }
+        }
+
+        const code1 = `Execution execution = root.execute("${func}", ijson, the_ifiles, ${outputAdapter});`
+        const code1Async = `return root.executeAsync("${func}", ijson, the_ifiles, ${outputAdapter}).thenApply(execution -> {`
+
         let code3 = ''
         if (!with_ofiles) {
             if (!this.isVoid(endpoint.output)) code3 = `return result;`
@@ -243,6 +546,8 @@ ${indent2(submodules_inits.join('\n'))}
         }
 
         return `
+${constants.join('\n')}
+
 /**
 ${summary || 'No summary'}${actor ? '\n\n    🔐 Authenticated' : ''}    ${status ? `\n    ❌ Warning: ${status}` : ''}    ${description ? '\n\n' + description : ''}
 */
@@ -254,6 +559,21 @@ public ${result} ${name}(${params} ${ifiles_parameter}) throws Exception {
     ${code2}
     ${code3}
 }
+
+/**
+Asynchronous version of ${name}: ${summary || 'No summary'}
+*/
+public CompletableFuture<${objectify(result)}> ${name}Async(${params} ${ifiles_parameter}) {
+
+    ${code0}
+    ${ifiles_decl}
+    ${code1Async}
+        ${code2}
+        ${code3 || 'return null;'}
+    });
+}
+${overloads}
+${streaming}
     `
     }
 
@@ -316,7 +636,13 @@ ${this.indent(module)}
             }
         } else if (model.type === 'object') {
             if ('properties' in model) {
-                if (name) {
+                if (name && this.records.has(name)) {
+                    const components = Object.entries(model.properties)
+                        .map(([key, value]: [string, any]) => `${this.typify(value, name, path, level + 1)} ${namify(key)}`)
+                        .join(', ')
+                    const description = '/** ' + (model.description ? model.description : 'No description yet') + ' */'
+                    return `${description}\npublic record ${name}(${components}) {\n}\n`
+                } else if (name) {
                     const props = Object.entries(model.properties)
                         .map(([key, value]: [string, any]) => {
                             return `    public ${this.typify(value, name, path, level + 1)} ${namify(key)};`
@@ -338,6 +664,10 @@ ${this.indent(module)}
             }
         } else if (model.type === 'array') {
             let base = this.typify(model.items, name, path, level + 1)
+            if (this.options.lean) {
+                if (base === 'int' || base === 'double') return `${base}[]`
+                return `ArrayList<${objectify(base)}>`
+            }
             base = objectify(base)
             return `Vector<${base}>`
         } else if (model.type === 'string') {
@@ -393,10 +723,32 @@ function namify(name: string): string {
     return name
 }
 
+// readers of the ModelAdapter base class for the scalar types
+const scalarReaders: Record<string, string> = {
+    String: 'readString',
+    int: 'readInt',
+    Integer: 'readInteger',
+    double: 'readDouble',
+    Double: 'readDoubleOrNull',
+    boolean: 'readBoolean',
+    Boolean: 'readBooleanOrNull',
+}
+
+function defaultValue(t: string): string {
+    if (t == 'int' || t == 'double') return '0'
+    if (t == 'boolean') return 'false'
+    return 'null'
+}
+
+function isPrimitive(t: string): boolean {
+    return t == 'int' || t == 'double' || t == 'boolean'
+}
+
 function objectify(t: string): string {
     if (t == 'int') return 'Integer'
     if (t == 'boolean') return 'Boolean'
     if (t == 'double') return 'Double'
+    if (t == 'void') return 'Void'
     return t
 }
 
@@ -5,6 +5,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import com.jutge.api.JutgeApiClient;
+import com.jutge.api.StubServer;
 
 class TestException extends Exception {
 }
@@ -66,6 +67,17 @@ public class Test {
         check(size == 52950); // hard coded value
     }
 
+    public static void TestSpooledLogo() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        jutge.spoolThreshold = 1024;
+        try (JutgeApiClient.Download download = jutge.misc.getLogo()) {
+            check(download.data == null);
+            check(download.size() == 52950); // hard coded value
+            download.write("logo.png");
+            check(Files.size(Paths.get("logo.png")) == 52950);
+        }
+    }
+
     public static void TestProblem() throws Exception {
         JutgeApiClient jutge = new JutgeApiClient();
         var problem = jutge.problems.getProblem("P68688_en");
@@ -73,6 +85,344 @@ public class Test {
         check(problem.abstract_problem.author.equals("Jordi Petit"));
     }
 
+    public static void TestCache() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        jutge.tables.get();
+        jutge.tables.get();
+        check(jutge.cache.misses() == 1);
+        check(jutge.cache.hits() == 1);
+        jutge.useCache = false;
+        jutge.tables.get();
+        check(jutge.cache.hits() == 1);
+    }
+
+    public static void TestCacheCopies() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        var tables = jutge.tables.get();
+        int languages = tables.languages.size();
+        tables.languages.clear();
+        var cached = jutge.tables.get();
+        check(jutge.cache.hits() == 1);
+        check(cached != tables && cached.languages.size() == languages);
+        cached.languages.clear();
+        check(jutge.tables.get().languages.size() == languages);
+    }
+
+    public static void TestTransport() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        JutgeApiClient.Transport http = jutge.transport;
+        int[] count = { 0 };
+        jutge.transport = request -> {
+            count[0]++;
+            return http.send(request);
+        };
+        jutge.misc.getFortune();
+        jutge.misc.getFortune();
+        check(count[0] == 2);
+    }
+
+    public static void TestAsync() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        var problem = jutge.problems.getProblemAsync("P68688_en");
+        var fortune = jutge.misc.getFortuneAsync();
+        check(problem.get().title.equals("Hello world!"));
+        check(fortune.get() != null);
+    }
+
+    public static void TestBatch() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        var batch = jutge.batch().concurrency(4);
+        String[] ids = { "P68688_en", "P68688_ca", "nonexistent" };
+        for (String id : ids) {
+            batch.add(() -> jutge.problems.getProblem(id));
+        }
+        var overflow = batch.add(() -> {
+            throw new StackOverflowError();
+        });
+        var calls = batch.run().calls();
+        check(calls.size() == 4);
+        check(((JutgeApiClient.Problem) calls.get(0).get()).problem_id.equals("P68688_en"));
+        check(calls.get(1).ok());
+        check(!calls.get(2).ok());
+        check(overflow.error() instanceof StackOverflowError);
+        check(batch.failures() == 2);
+    }
+
+    public static void TestCoalesce() throws Exception {
+        // the stub holds the first request long enough for the other calls to join it
+        StubServer stub = new StubServer();
+        stub.delay = 1000;
+        try {
+            JutgeApiClient jutge = new JutgeApiClient(stub.url());
+            jutge.useCache = false;
+            jutge.coalesce = true;
+            var batch = jutge.batch().concurrency(8);
+            for (int i = 0; i < 8; i++) {
+                batch.add(() -> jutge.problems.getProblem("P68688_en"));
+            }
+            for (var call : batch.run().calls()) {
+                check(((JutgeApiClient.Problem) call.get()).title.equals("Hello world!"));
+            }
+            check(jutge.coalescedCalls() == 7);
+            check(stub.received() == 1);
+        } finally {
+            stub.close();
+        }
+    }
+
+    public static void TestCompression() throws Exception {
+        // the same calls answered plainly and compressed must decode to the same bytes
+        StubServer stub = new StubServer();
+        try {
+            JutgeApiClient plain = new JutgeApiClient(stub.url());
+            plain.useCache = false;
+            String tables = JutgeApiClient.GSON.toJson(plain.tables.get());
+            byte[] logo = plain.misc.getLogo().data;
+            long statuses = plain.student.statuses.getAllStream().count();
+            check(stub.compressed() == 0);
+            for (String encoding : new String[] { "gzip", "deflate" }) {
+                stub.gzip = encoding.equals("gzip");
+                stub.deflate = encoding.equals("deflate");
+                JutgeApiClient compressed = new JutgeApiClient(stub.url());
+                compressed.useCache = false;
+                compressed.compressionThreshold = 0;
+                compressed.spoolThreshold = 1024;
+                long before = stub.compressed();
+                check(JutgeApiClient.GSON.toJson(compressed.tables.get()).equals(tables));
+                try (JutgeApiClient.Download download = compressed.misc.getLogo()) {
+                    check(download.data == null && java.util.Arrays.equals(download.getData(), logo));
+                }
+                check(compressed.student.statuses.getAllStream().count() == statuses);
+                // three compressed requests and three compressed responses
+                check(stub.compressed() - before == 6);
+            }
+        } finally {
+            stub.close();
+        }
+    }
+
+    public static void TestTimeout() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        check(jutge.readOnly.contains("problems.getProblem"));
+        check(!jutge.readOnly.contains("student.submissions.submit"));
+        jutge.retries = 0;
+        jutge.timeouts.put("misc.getFortune", java.time.Duration.ofNanos(1));
+        try {
+            jutge.misc.getFortune();
+            check(false);
+        } catch (java.net.http.HttpTimeoutException e) {
+            // expected
+        }
+        jutge.timeouts.clear();
+        jutge.hedge = true;
+        check(jutge.misc.getFortune() != null);
+    }
+
+    public static void TestMetrics() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        var recorder = new JutgeApiClient.MetricsRecorder();
+        jutge.metrics = recorder;
+        jutge.problems.getProblem("P68688_en");
+        jutge.misc.getLogo();
+        var problem = recorder.funcs().get("problems.getProblem");
+        check(problem.total.count() == 1);
+        check(problem.statuses.get(200).get() == 1);
+        check(problem.bytesReceived.get() > 0);
+        check(recorder.funcs().get("misc.getLogo").ofiles.get() == 1);
+    }
+
+    public static void TestDiskCache() throws Exception {
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("jutge-cache");
+        JutgeApiClient first = new JutgeApiClient();
+        first.useDiskCache(directory);
+        var tables = first.tables.get();
+        // a process of another API version keeps its own entries
+        new JutgeApiClient.DiskCache(directory, "another version");
+        JutgeApiClient second = new JutgeApiClient();
+        second.useDiskCache(directory);
+        check(second.tables.get().compilers.size() == tables.compilers.size());
+        check(second.diskCache.hits() == 1);
+        second.diskCache.clear();
+        check(second.diskCache.size() == 0);
+    }
+
+    public static void TestDiskCacheTornTail() throws Exception {
+        // a worker killed while appending to the index leaves part of a record behind
+        StubServer stub = new StubServer();
+        try {
+            Path directory = Files.createTempDirectory("jutge-cache");
+            JutgeApiClient first = new JutgeApiClient(stub.url());
+            first.useDiskCache(directory);
+            first.tables.get();
+            JutgeApiClient second = new JutgeApiClient(stub.url());
+            second.useDiskCache(directory);
+            Path index;
+            try (var files = Files.walk(directory)) {
+                index = files.filter(path -> path.getFileName().toString().equals("index")).findFirst().get();
+            }
+            byte[] torn = new byte[44];
+            torn[41] = 2;
+            torn[42] = torn[43] = (byte) 0xff;
+            Files.write(index, torn, java.nio.file.StandardOpenOption.APPEND);
+            second.problems.getProblem("P68688_en");
+            JutgeApiClient third = new JutgeApiClient(stub.url());
+            third.useDiskCache(directory);
+            check(third.diskCache.size() == 2);
+            third.problems.getProblem("P68688_en");
+            check(third.diskCache.hits() == 1);
+            // a tail left by a process that is not writing anymore is removed on open
+            Files.write(index, torn, java.nio.file.StandardOpenOption.APPEND);
+            long size = Files.size(index);
+            new JutgeApiClient.DiskCache(directory, JutgeApiClient.API_VERSION);
+            check(Files.size(index) == size - torn.length);
+        } finally {
+            stub.close();
+        }
+    }
+
+    public static void TestStream() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        int[] count = { 0 };
+        jutge.tables.getCompilersForEach((id, compiler) -> count[0]++);
+        try (var compilers = jutge.tables.getCompilersStream()) {
+            check(compilers.count() == count[0]);
+        }
+        try (var compilers = jutge.tables.getCompilersStream()) {
+            check(compilers.anyMatch(entry -> entry.getKey().equals(entry.getValue().compiler_id)));
+        }
+    }
+
+    public static void TestSessions() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        var anonymous = jutge.as(null);
+        var other = jutge.as("not a token");
+        check(anonymous.token() == null);
+        check(other.token().equals("not a token"));
+        check(other.client() == jutge && other.as("another").client() == jutge);
+        check(anonymous.problems.getProblem("P68688_en").title.equals("Hello world!"));
+        other.setToken(null);
+        check(other.problems.getProblem("P68688_en").title.equals("Hello world!"));
+        check(jutge.cache.hits() == 1);
+    }
+
+    public static void TestScheduler() throws Exception {
+        // one request at a time, answered late enough for the others to queue behind it
+        StubServer stub = new StubServer();
+        stub.delay = 200;
+        try {
+            JutgeApiClient jutge = new JutgeApiClient(stub.url());
+            jutge.useCache = false;
+            jutge.scheduler = new JutgeApiClient.Scheduler(0, 1, 1);
+            var scheduler = jutge.scheduler;
+            var bulk = jutge.withPriority(JutgeApiClient.Priority.BULK);
+            var order = java.util.Collections.synchronizedList(new java.util.ArrayList<String>());
+            var calls = new java.util.ArrayList<java.util.concurrent.CompletableFuture<?>>();
+            calls.add(bulk.misc.getFortuneAsync().thenRun(() -> order.add("bulk")));
+            for (int i = 0; i < 50 && scheduler.inFlight() == 0; i++) {
+                Thread.sleep(10);
+            }
+            check(scheduler.inFlight() == 1);
+            // the bulk calls queue first, but the interactive ones are sent before them
+            for (int i = 0; i < 2; i++) {
+                calls.add(bulk.misc.getFortuneAsync().thenRun(() -> order.add("bulk")));
+            }
+            for (String id : new String[] { "P68688_en", "P68688_ca" }) {
+                calls.add(jutge.problems.getProblemAsync(id).thenRun(() -> order.add("interactive")));
+            }
+            for (int i = 0; i < 50 && scheduler.queued(JutgeApiClient.Priority.BULK) < 2; i++) {
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < 50 && scheduler.queued(JutgeApiClient.Priority.INTERACTIVE) < 2; i++) {
+                Thread.sleep(10);
+            }
+            check(scheduler.queued(JutgeApiClient.Priority.BULK) == 2);
+            check(scheduler.queued(JutgeApiClient.Priority.INTERACTIVE) == 2);
+            check(scheduler.inFlight() == 1);
+            for (var call : calls) {
+                call.get();
+            }
+            check(order.equals(java.util.List.of("bulk", "interactive", "interactive", "bulk", "bulk")));
+            check(scheduler.queued(JutgeApiClient.Priority.BULK) == 0);
+            check(scheduler.queued(JutgeApiClient.Priority.INTERACTIVE) == 0);
+            check(scheduler.inFlight() == 0);
+            check(scheduler.waits(JutgeApiClient.Priority.BULK).count() == 3);
+            check(scheduler.waits(JutgeApiClient.Priority.INTERACTIVE).count() == 2);
+        } finally {
+            stub.close();
+        }
+    }
+
+    public static void TestRouter() throws Exception {
+        // local mirrors: the first answers late, and the second fails for a while
+        StubServer[] stubs = { new StubServer(), new StubServer(), new StubServer() };
+        try {
+            // warm up on a client of its own, so that the first samples are not those of a cold JVM
+            JutgeApiClient warm = new JutgeApiClient(stubs[2].url());
+            warm.useCache = false;
+            for (int i = 0; i < 20; i++) {
+                warm.problems.getProblem("P68688_en");
+            }
+            stubs[0].delay = 200;
+            JutgeApiClient jutge = new JutgeApiClient(stubs[0].url(), stubs[1].url(), stubs[2].url());
+            jutge.useCache = false;
+            for (int i = 0; i < 20; i++) {
+                check(jutge.problems.getProblem("P68688_en").title.equals("Hello world!"));
+            }
+            // the slow one gets no more requests once the latencies are known
+            long slow = stubs[0].received();
+            for (int i = 0; i < 20; i++) {
+                check(jutge.problems.getProblem("P68688_en").title.equals("Hello world!"));
+            }
+            check(stubs[0].received() == slow);
+            var endpoints = jutge.router.endpoints();
+            check(endpoints[0].latency() > endpoints[1].latency() && endpoints[0].latency() > endpoints[2].latency());
+            check(endpoints[0].outstanding() == 0 && endpoints[1].outstanding() == 0 && endpoints[2].outstanding() == 0);
+            // with the slow one as the only alternative, the failing one keeps its traffic until ejected
+            JutgeApiClient failover = new JutgeApiClient(stubs[1].url(), stubs[0].url());
+            failover.useCache = false;
+            failover.retries = failover.router.ejectAfter;
+            failover.retryBackoff = java.time.Duration.ofMillis(1);
+            failover.router.ejection = java.time.Duration.ofMillis(500);
+            failover.router.decay = java.time.Duration.ofMinutes(10);
+            endpoints = failover.router.endpoints();
+            // until both have latencies, since one without samples is expected to be as fast as the fastest
+            for (int i = 0; i < 50 && (endpoints[0].requests() < 3 || endpoints[1].requests() == 0); i++) {
+                check(failover.problems.getProblem("P68688_en").title.equals("Hello world!"));
+            }
+            stubs[1].down = true;
+            long before = stubs[1].received();
+            check(failover.problems.getProblem("P68688_en").title.equals("Hello world!"));
+            check(endpoints[0].ejected());
+            check(stubs[1].received() - before == failover.router.ejectAfter);
+            long ejected = stubs[1].received();
+            check(failover.problems.getProblem("P68688_en").title.equals("Hello world!"));
+            check(stubs[1].received() == ejected);
+            // once it answers again, the probe at the end of its ejection lets it back
+            stubs[1].down = false;
+            for (int i = 0; i < 100 && endpoints[0].ejected(); i++) {
+                Thread.sleep(50);
+            }
+            check(!endpoints[0].ejected());
+            long probed = stubs[1].received();
+            check(probed > ejected);
+            check(failover.problems.getProblem("P68688_en").title.equals("Hello world!"));
+            check(stubs[1].received() == probed + 1);
+        } finally {
+            for (StubServer stub : stubs) {
+                stub.close();
+            }
+        }
+    }
+
+    public static void TestWatch() throws Exception {
+        JutgeApiClient jutge = new JutgeApiClient();
+        var watch = jutge.watch(() -> jutge.tables.get());
+        var tables = watch.poll();
+        check(watch.poll() == tables);
+        check(watch.polls() == 2 && watch.changes() == 1 && watch.reused() == 1);
+        check(jutge.cache.hits() == 0);
+    }
+
     public static void main(String[] args) throws Exception {
         Method[] allMethods = Test.class.getDeclaredMethods();
         for (Method method : allMethods) {
@@ -68,15 +68,14 @@ public class Tutorial {
         // There are other modules for different roles, such as admin, instructor, etc.
 
         // Get all problem statuses, filter those that are accepted and print the first
-        // 8 in alphabetical order.
-        var statuses = jutge.student.statuses.getAll();
+        // 8 in alphabetical order. The ForEach variant decodes the statuses one at a
+        // time, instead of building the whole map.
         List<String> accepteds = new ArrayList<>();
-        for (var entry : statuses.entrySet()) {
-            var status = entry.getValue();
+        jutge.student.statuses.getAllForEach((problem_nm, status) -> {
             if ("accepted".equals(status.status)) {
                 accepteds.add(status.problem_nm);
             }
-        }
+        });
         Collections.sort(accepteds);
         var first8 = accepteds.stream().limit(8).collect(Collectors.toList());
         System.out.println(first8);